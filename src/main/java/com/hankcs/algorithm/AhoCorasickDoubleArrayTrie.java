@@ -20,19 +20,31 @@
 
 package com.hankcs.algorithm;
 
-import java.io.Serializable;
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * An implementation of Aho Corasick algorithm based on Double Array Trie
+ * <p>
+ * Scanning never modifies a built automaton, any number of threads may scan it at the same time.
+ * </p>
+ * <p>
+ * Java serialization writes the values along with the arrays, so they must be {@link Serializable}. The binary
+ * format of {@link #save(DataOutputStream)} leaves them out.
+ * </p>
  *
  * @author hankcs
  */
 public class AhoCorasickDoubleArrayTrie<V> implements Serializable{
     /**
-	 * 
+	 * changed when the values became part of the serialized form and with the packed output table, the automata
+	 * serialized before cannot be read
 	 */
-	private static final long serialVersionUID = -5130124839413888122L;
+	private static final long serialVersionUID = -5130124839413888123L;
 	/**
      * check array of the Double Array Trie structure
      */
@@ -46,13 +58,44 @@ public class AhoCorasickDoubleArrayTrie<V> implements Serializable{
      */
     protected int[] fail;
     /**
-     * output table of the Aho Corasick automata
+     * the code of every character, the offset of its transition from base. The most frequent characters of the
+     * keywords have the smallest codes, the last entry is the code shared by all the characters which do not occur
+     * in any keyword, and by every character past the end of the table.
      */
-    protected int[][] output;
+    protected char[] code;
     /**
-     * outer value array
+     * the character of every code, the inverse of code on the characters of the keywords
      */
-    transient V[] v;
+    protected char[] alphabet;
+    /**
+     * the transitions of the root indexed by code, 0 where the root has no child. A transition from the root, or one
+     * whose failure walk reaches the root, ends with this load instead of a check. The other states, the depth-1
+     * ones included, are not tabulated, see {@link BuildOptions#dfa(boolean)} for a table of every state.
+     */
+    protected int[] rootNext;
+    /**
+     * the complete transition function when built with {@link BuildOptions#dfa(boolean)}, null otherwise. The
+     * next state of state s on a character of code c is dfaNext[dfaRow[s] + c], the failures are already folded in.
+     */
+    protected int[] dfaNext;
+    /**
+     * the offset of the row of every state in dfaNext
+     */
+    protected int[] dfaRow;
+    /**
+     * output table of the Aho Corasick automata, the outputs of state i are
+     * outputIds[outputOffsets[i]] to outputIds[outputOffsets[i + 1] - 1]. A negative id -(s + 1) is an output
+     * link, the outputs continue with those of state s
+     */
+    protected int[] outputOffsets;
+    /**
+     * the keyword ids of all states, packed in the order of the states
+     */
+    protected int[] outputIds;
+    /**
+     * outer value array, serialized along with the automaton
+     */
+    protected V[] v;
 
     /**
      * the length of every key
@@ -64,6 +107,32 @@ public class AhoCorasickDoubleArrayTrie<V> implements Serializable{
      */
     protected int size;
 
+    /**
+     * the length of the longest key
+     */
+    protected int maxLength;
+
+    /**
+     * the depth of every state, computed on the first scan which needs it
+     */
+    private transient volatile int[] depth;
+
+    /**
+     * the children of every state sorted by character, the terminal first, computed on the first enumeration of
+     * the keys: the children of state s are childStates[childOffsets[s]] to childStates[childOffsets[s + 1] - 1]
+     */
+    private transient volatile int[][] children;
+
+    /**
+     * the smallest chunk of text a parallel scan hands to one task
+     */
+    private static final int MIN_CHUNK = 1 << 16;
+
+    /**
+     * the smallest amount of documents a batch scan hands to one task
+     */
+    private static final int MIN_BATCH = 64;
+
     /**
      * Parse text
      *
@@ -93,11 +162,14 @@ public class AhoCorasickDoubleArrayTrie<V> implements Serializable{
         int currentState = 0;
         for (int i = 0; i < text.length(); ++i){
             currentState = getState(currentState, text.charAt(i));
-            int[] hitArray = output[currentState];
-            if (hitArray != null){
-                for (int hit : hitArray){
-                    processor.hit(position - l[hit], position, v[hit]);
+            for (int j = outputOffsets[currentState], end = outputOffsets[currentState + 1]; j < end; ++j){
+                int hit = outputIds[j];
+                if (hit < 0){
+                    j = outputOffsets[-hit - 1] - 1;
+                    end = outputOffsets[-hit];
+                    continue;
                 }
+                processor.hit(position - l[hit], position, v[hit]);
             }
             ++position;
         }
@@ -114,13 +186,16 @@ public class AhoCorasickDoubleArrayTrie<V> implements Serializable{
         for (int i = 0; i < text.length(); i++){
             final int position = i + 1;
             currentState = getState(currentState, text.charAt(i));
-            int[] hitArray = output[currentState];
-            if (hitArray != null){
-                for (int hit : hitArray){
-                    boolean proceed = processor.hit(position - l[hit], position, v[hit]);
-                    if (!proceed){
-                        return;
-                    }
+            for (int j = outputOffsets[currentState], end = outputOffsets[currentState + 1]; j < end; ++j){
+                int hit = outputIds[j];
+                if (hit < 0){
+                    j = outputOffsets[-hit - 1] - 1;
+                    end = outputOffsets[-hit];
+                    continue;
+                }
+                boolean proceed = processor.hit(position - l[hit], position, v[hit]);
+                if (!proceed){
+                    return;
                 }
             }
         }
@@ -128,6 +203,163 @@ public class AhoCorasickDoubleArrayTrie<V> implements Serializable{
 
   
 
+    /**
+     * Parse text, reporting the index of every keyword
+     *
+     * @param text      The text
+     * @param processor A processor which handles the output
+     */
+    public void parseText(CharSequence text, IHitFull<V> processor){
+        int currentState = 0;
+        for (int i = 0; i < text.length(); ++i){
+            final int position = i + 1;
+            currentState = getState(currentState, text.charAt(i));
+            for (int j = outputOffsets[currentState], end = outputOffsets[currentState + 1]; j < end; ++j){
+                int hit = outputIds[j];
+                if (hit < 0){
+                    j = outputOffsets[-hit - 1] - 1;
+                    end = outputOffsets[-hit];
+                    continue;
+                }
+                processor.hit(position - l[hit], position, v[hit], hit);
+            }
+        }
+    }
+
+    /**
+     * Parse text, reporting only the hits which are whole words
+     *
+     * @param text  The text
+     * @param words the word characters
+     * @return a list of outputs
+     */
+    public List<Hit<V>> parseText(CharSequence text, WordCharacters words){
+        final List<Hit<V>> collectedEmits = new ArrayList<>();
+        parseText(text, words, new IHitFull<V>(){
+            @Override
+            public void hit(int begin, int end, V value, int index){
+                collectedEmits.add(new Hit<>(begin, end, value));
+            }
+        });
+        return collectedEmits;
+    }
+
+    /**
+     * Parse text, reporting only the hits which are whole words, i.e. not preceded nor followed by a word
+     * character. The boundary after a position is checked once for all the hits ending there, before reading
+     * them, the boundary before a hit when it has passed the first check.
+     *
+     * @param text      The text
+     * @param words     the word characters
+     * @param processor A processor which handles the output
+     */
+    public void parseText(CharSequence text, WordCharacters words, IHitFull<V> processor){
+        int currentState = 0;
+        int length = text.length();
+        for (int i = 0; i < length; ++i){
+            final int position = i + 1;
+            currentState = getState(currentState, text.charAt(i));
+            int j = outputOffsets[currentState];
+            int end = outputOffsets[currentState + 1];
+            if (j == end || position < length && words.contains(text.charAt(position))) continue;
+            for (; j < end; ++j){
+                int hit = outputIds[j];
+                if (hit < 0){
+                    j = outputOffsets[-hit - 1] - 1;
+                    end = outputOffsets[-hit];
+                    continue;
+                }
+                int begin = position - l[hit];
+                if (begin == 0 || !words.contains(text.charAt(begin - 1))){
+                    processor.hit(begin, position, v[hit], hit);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parse text into a buffer of primitive columns, without allocating anything per hit. The hits are appended in
+     * the order of {@link #parseText(CharSequence)}, clear the buffer first to reuse it.
+     *
+     * @param text The text
+     * @param hits the buffer receiving the hits, look their values up with {@link #get(int)}
+     */
+    public void parseText(CharSequence text, HitBuffer hits){
+        int currentState = 0;
+        for (int i = 0; i < text.length(); ++i){
+            final int position = i + 1;
+            currentState = getState(currentState, text.charAt(i));
+            for (int j = outputOffsets[currentState], end = outputOffsets[currentState + 1]; j < end; ++j){
+                int hit = outputIds[j];
+                if (hit < 0){
+                    j = outputOffsets[-hit - 1] - 1;
+                    end = outputOffsets[-hit];
+                    continue;
+                }
+                hits.add(position - l[hit], position, hit);
+            }
+        }
+    }
+
+    /**
+     * Count the occurrences of every keyword in a text, without reporting them one by one
+     *
+     * @param text   The text
+     * @param counts the counters indexed by the index of the keywords, at least {@link #size()} of them. The
+     *               occurrences are added to what they hold.
+     * @return the total amount of hits
+     */
+    public long countHits(CharSequence text, int[] counts){
+        if (counts.length < v.length){
+            throw new IllegalArgumentException("Expected at least " + v.length + " counters, got " + counts.length);
+        }
+        long total = 0;
+        int currentState = 0;
+        for (int i = 0; i < text.length(); ++i){
+            currentState = getState(currentState, text.charAt(i));
+            for (int j = outputOffsets[currentState], end = outputOffsets[currentState + 1]; j < end; ++j){
+                int hit = outputIds[j];
+                if (hit < 0){
+                    j = outputOffsets[-hit - 1] - 1;
+                    end = outputOffsets[-hit];
+                    continue;
+                }
+                ++counts[hit];
+                ++total;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Count the hits in a text, only reading the size of the outputs of the states
+     *
+     * @param text The text
+     * @return the total amount of hits
+     */
+    public long countHits(CharSequence text){
+        long total = 0;
+        int currentState = 0;
+        for (int i = 0; i < text.length(); ++i){
+            currentState = getState(currentState, text.charAt(i));
+            int state = currentState;
+            while (true){
+                int begin = outputOffsets[state];
+                int end = outputOffsets[state + 1];
+                if (begin == end) break;
+                int last = outputIds[end - 1];
+                if (last >= 0){
+                    total += end - begin;
+                    break;
+                }
+                // an output link is always the last output of a state
+                total += end - begin - 1;
+                state = -last - 1;
+            }
+        }
+        return total;
+    }
+
     /**
      * Checks that string contains at least one substring
      *
@@ -138,8 +370,7 @@ public class AhoCorasickDoubleArrayTrie<V> implements Serializable{
         int currentState = 0;
         for (int i = 0; i < text.length(); ++i){
             currentState = getState(currentState, text.charAt(i));
-            int[] hitArray = output[currentState];
-            if (hitArray != null){
+            if (outputOffsets[currentState] != outputOffsets[currentState + 1]){
                 return true;
             }
         }
@@ -157,9 +388,10 @@ public class AhoCorasickDoubleArrayTrie<V> implements Serializable{
         int currentState = 0;
         for (int i = 0; i < text.length(); ++i){
             currentState = getState(currentState, text.charAt(i));
-            int[] hitArray = output[currentState];
-            if (hitArray != null){
-                int hitIndex = hitArray[0];
+            int offset = outputOffsets[currentState];
+            if (offset != outputOffsets[currentState + 1]){
+                int hitIndex = outputIds[offset];
+                if (hitIndex < 0) hitIndex = outputIds[outputOffsets[-hitIndex - 1]];
                 return new Hit<>(position - l[hitIndex], position, v[hitIndex]);
             }
             ++position;
@@ -167,179 +399,1227 @@ public class AhoCorasickDoubleArrayTrie<V> implements Serializable{
         return null;
     }
 
-   
-
     /**
-     * Processor handles the output when hit a keyword
+     * How the hits of a scan are chosen
      */
-    public interface IHit<V>{
+    public enum MatchKind{
         /**
-         * Hit a keyword, you can use some code like text.substring(begin, end) to get the keyword
-         *
-         * @param begin the beginning index, inclusive.
-         * @param end   the ending index, exclusive.
-         * @param value the value assigned to the keyword
+         * every occurrence of every keyword, overlapping or not
          */
-        void hit(int begin, int end, V value);
-    }
-
-    /**
-     * Processor handles the output when hit a keyword, with more detail
-     */
-    public interface IHitFull<V>{
+        STANDARD,
         /**
-         * Hit a keyword, you can use some code like text.substring(begin, end) to get the keyword
-         *
-         * @param begin the beginning index, inclusive.
-         * @param end   the ending index, exclusive.
-         * @param value the value assigned to the keyword
-         * @param index the index of the value assigned to the keyword, you can use the integer as a perfect hash value
+         * non-overlapping occurrences, scanning from left to right: of the keywords beginning at the leftmost
+         * position, the longest one is reported, and the scan resumes after it
          */
-        void hit(int begin, int end, V value, int index);
+        LEFTMOST_LONGEST,
+        /**
+         * non-overlapping occurrences, scanning from left to right: of the keywords beginning at the leftmost
+         * position, the one with the smallest index is reported, i.e. the first one in the iteration order of the
+         * map the automaton was built from, and the scan resumes after it
+         */
+        LEFTMOST_FIRST,
     }
 
     /**
-     * Callback that allows to cancel the search process.
+     * Parse text, choosing the hits according to a match kind
+     *
+     * @param text The text
+     * @param kind how to choose the hits
+     * @return a list of outputs
      */
-    public interface IHitCancellable<V>{
-        /**
-         * Hit a keyword, you can use some code like text.substring(begin, end) to get the keyword
-         *
-         * @param begin the beginning index, inclusive.
-         * @param end   the ending index, exclusive.
-         * @param value the value assigned to the keyword
-         * @return Return true for continuing the search and false for stopping it.
-         */
-        boolean hit(int begin, int end, V value);
+    public List<Hit<V>> parseText(CharSequence text, MatchKind kind){
+        final List<Hit<V>> collectedEmits = new ArrayList<>();
+        parseText(text, kind, new IHitFull<V>(){
+            @Override
+            public void hit(int begin, int end, V value, int index){
+                collectedEmits.add(new Hit<>(begin, end, value));
+            }
+        });
+        return collectedEmits;
     }
 
     /**
-     * A result output
+     * Parse text, choosing the hits according to a match kind. The leftmost kinds keep a single candidate while
+     * scanning, and report it as soon as the depth of the current state proves that no keyword can begin at or before
+     * it any more. No list of overlapping hits is built. When a hit was seen past the candidate, the scan resumes
+     * from the end of the reported match, which rescans less than the length of the longest keyword.
      *
-     * @param <V> the value type
+     * @param text      The text
+     * @param kind      how to choose the hits
+     * @param processor A processor which handles the output, in ascending order of positions
      */
-    public static class Hit<V>{
-        /**
-         * the beginning index, inclusive.
-         */
-        public final int begin;
-        /**
-         * the ending index, exclusive.
-         */
-        public final int end;
-        /**
-         * the value assigned to the keyword
-         */
-        public final V value;
-
-        public Hit(int begin, int end, V value){
-            this.begin = begin;
-            this.end = end;
-            this.value = value;
+    public void parseText(CharSequence text, MatchKind kind, IHitFull<V> processor){
+        if (kind == MatchKind.STANDARD){
+            parseText(text, processor);
+            return;
         }
-
-        @Override
-        public String toString(){
-            return String.format("[%d:%d]=%s", begin, end, value);
+        int[] depth = depth();
+        boolean longest = kind == MatchKind.LEFTMOST_LONGEST;
+        int length = text.length();
+        // no match may begin before the end of the last one
+        int lastEnd = 0;
+        int candidate = -1;
+        int candidateBegin = 0;
+        int candidateEnd = 0;
+        // the rightmost beginning of the hits passed over for the candidate
+        int passedBegin = -1;
+        int currentState = 0;
+        for (int i = 0; ; ++i){
+            if (i == length){
+                if (candidate < 0) break;
+                processor.hit(candidateBegin, candidateEnd, v[candidate], candidate);
+                lastEnd = candidateEnd;
+                candidate = -1;
+                if (passedBegin < lastEnd) break;
+                passedBegin = -1;
+                currentState = 0;
+                i = lastEnd - 1;
+                continue;
+            }
+            final int position = i + 1;
+            currentState = getState(currentState, text.charAt(i));
+            if (candidate >= 0 && position - depth[currentState] > candidateBegin){
+                // every hit from here on begins after the candidate
+                processor.hit(candidateBegin, candidateEnd, v[candidate], candidate);
+                lastEnd = candidateEnd;
+                candidate = -1;
+                if (passedBegin >= lastEnd){
+                    // a hit which may follow the candidate has been passed over, rescan from its end
+                    passedBegin = -1;
+                    currentState = 0;
+                    i = lastEnd - 1;
+                    continue;
+                }
+            }
+            for (int j = outputOffsets[currentState], end = outputOffsets[currentState + 1]; j < end; ++j){
+                int hit = outputIds[j];
+                if (hit < 0){
+                    j = outputOffsets[-hit - 1] - 1;
+                    end = outputOffsets[-hit];
+                    continue;
+                }
+                int begin = position - l[hit];
+                if (begin < lastEnd) continue;
+                if (candidate < 0 || begin < candidateBegin
+                        || begin == candidateBegin && (longest ? position > candidateEnd : hit < candidate)){
+                    if (candidate >= 0) passedBegin = Math.max(passedBegin, candidateBegin);
+                    candidate = hit;
+                    candidateBegin = begin;
+                    candidateEnd = position;
+                }else{
+                    passedBegin = Math.max(passedBegin, begin);
+                }
+            }
         }
     }
 
     /**
-     * transmit state, supports failure function
+     * Replace the keywords in a text, writing the result in one pass. The text between the matches is appended in
+     * bulk, no list of hits is built.
      *
-     * @param currentState
-     * @param character
-     * @return
+     * @param text        The text
+     * @param kind        how to choose the non-overlapping matches, {@link MatchKind#STANDARD} is not allowed
+     * @param replacement computes the text replacing every match
+     * @param out         where the result is appended
+     * @param <A>         the type of the output
+     * @return out
+     * @throws IOException if out throws it
      */
-    private int getState(int currentState, char character){
-        int newCurrentState = transitionWithRoot(currentState, character);
-        while (newCurrentState == -1){
-            currentState = fail[currentState];
-            newCurrentState = transitionWithRoot(currentState, character);
+    public <A extends Appendable> A replace(CharSequence text, MatchKind kind, final IReplacement<V> replacement, A out) throws IOException{
+        return rewrite(text, kind, out, new Rewriter(){
+            @Override
+            void write(Appendable out, CharSequence text, int begin, int end, V value, int index) throws IOException{
+                CharSequence replaced = replacement.replacement(begin, end, value, index);
+                out.append(replaced == null ? text.subSequence(begin, end) : replaced);
+            }
+        });
+    }
+
+    /**
+     * Replace every keyword in a text by its value
+     *
+     * @param text The text
+     * @param kind how to choose the non-overlapping matches, {@link MatchKind#STANDARD} is not allowed
+     * @return the text with the keywords replaced by {@link String#valueOf(Object)} of their values
+     */
+    public String replace(CharSequence text, MatchKind kind){
+        try{
+            return rewrite(text, kind, new StringBuilder(text.length()), new Rewriter(){
+                @Override
+                void write(Appendable out, CharSequence text, int begin, int end, V value, int index) throws IOException{
+                    out.append(String.valueOf(value));
+                }
+            }).toString();
+        }catch (IOException e){
+            throw new IllegalStateException(e);
         }
-        return newCurrentState;
     }
 
     /**
-     * store output
+     * Mask every character of the keywords in a text
      *
-     * @param position
-     * @param currentState
-     * @param collectedEmits
+     * @param text The text
+     * @param kind how to choose the non-overlapping matches, {@link MatchKind#STANDARD} is not allowed
+     * @param mask the character written in place of every character of a keyword
+     * @param out  where the result is appended
+     * @param <A>  the type of the output
+     * @return out
+     * @throws IOException if out throws it
      */
-    private void storeEmits(int position, int currentState, List<Hit<V>> collectedEmits){
-        int[] hitArray = output[currentState];
-        if (hitArray != null){
-            for (int hit : hitArray){
-                collectedEmits.add(new Hit<>(position - l[hit], position, v[hit]));
+    public <A extends Appendable> A redact(CharSequence text, MatchKind kind, char mask, A out) throws IOException{
+        char[] masks = new char[maxLength];
+        Arrays.fill(masks, mask);
+        final String masked = new String(masks);
+        return rewrite(text, kind, out, new Rewriter(){
+            @Override
+            void write(Appendable out, CharSequence text, int begin, int end, V value, int index) throws IOException{
+                out.append(masked, 0, end - begin);
             }
+        });
+    }
+
+    private <A extends Appendable> A rewrite(CharSequence text, MatchKind kind, A out, Rewriter rewriter) throws IOException{
+        if (kind == MatchKind.STANDARD){
+            throw new IllegalArgumentException("Overlapping matches cannot be replaced, choose a leftmost match kind");
         }
+        rewriter.out = out;
+        rewriter.text = text;
+        parseText(text, kind, rewriter);
+        if (rewriter.exception != null) throw rewriter.exception;
+        out.append(text, rewriter.copied, text.length());
+        return out;
     }
 
+    /**
+     * Copies the text up to every match then writes the match, keeping the first exception of the output
+     */
+    private abstract class Rewriter implements IHitFull<V>{
+        Appendable out;
+        CharSequence text;
+        /**
+         * the end of the text already written
+         */
+        int copied;
+        IOException exception;
+
+        @Override
+        public void hit(int begin, int end, V value, int index){
+            if (exception != null) return;
+            try{
+                out.append(text, copied, begin);
+                write(out, text, begin, end, value, index);
+                copied = end;
+            }catch (IOException e){
+                exception = e;
+            }
+        }
+
+        abstract void write(Appendable out, CharSequence text, int begin, int end, V value, int index) throws IOException;
+    }
 
     /**
-     * transition of a state, if the state is root and it failed, then returns the root
-     *
-     * @param nodePos
-     * @param c
-     * @return
+     * @return the depth of every state, the root being 0
      */
-    protected int transitionWithRoot(int nodePos, char c){
-        int b = base[nodePos];
-        int p;
+    private int[] depth(){
+        int[] depth = this.depth;
+        if (depth != null) return depth;
+        int[] parentOfBase = parentOfBase();
+        depth = new int[Math.max(size, 1)];
+        Arrays.fill(depth, -1);
+        depth[0] = 0;
+        int[] path = new int[maxLength + 1];
+        for (int s = 1; s < size; ++s){
+            if (depth[s] >= 0 || check[s] == 0 || base[s] <= 0) continue;
+            int count = 0;
+            int state = s;
+            while (depth[state] < 0){
+                path[count++] = state;
+                state = parentOfBase[check[state]];
+            }
+            while (count > 0){
+                int child = path[--count];
+                depth[child] = depth[state] + 1;
+                state = child;
+            }
+        }
+        this.depth = depth;
+        return depth;
+    }
 
-        p = b + c + 1;
-        if (b != check[p]){
-            if (nodePos == 0) return 0;
-            return -1;
+    /**
+     * @return the parent of the states checking every base
+     */
+    private int[] parentOfBase(){
+        // the base of a state is unique, it identifies the parent of the states checking it
+        int[] parentOfBase = new int[size + 1];
+        for (int s = 1; s < size; ++s){
+            if (check[s] != 0 && base[s] > 0) parentOfBase[base[s]] = s;
         }
-        return p;
+        parentOfBase[base[0]] = 0;
+        return parentOfBase;
     }
 
     /**
-     * Build a AhoCorasickDoubleArrayTrie from a map
-     *
-     * @param map a map containing key-value pairs
+     * @return the child offsets and the child states, see {@link #children}
      */
-    public void build(Map<String, V> map){
-        new Builder().build(map); 
+    private int[][] children(){
+        int[][] children = this.children;
+        if (children != null) return children;
+        int[] parentOfBase = parentOfBase();
+        int[] childOffsets = new int[size + 1];
+        for (int p = 1; p < size; ++p){
+            if (check[p] != 0) ++childOffsets[parentOfBase[check[p]] + 1];
+        }
+        for (int s = 0; s < size; ++s){
+            childOffsets[s + 1] += childOffsets[s];
+        }
+        int[] childStates = new int[childOffsets[size]];
+        int[] cursor = Arrays.copyOf(childOffsets, size);
+        for (int p = 1; p < size; ++p){
+            if (check[p] != 0) childStates[cursor[parentOfBase[check[p]]]++] = p;
+        }
+        // the positions follow the codes, sort them by character
+        long[] keys = new long[16];
+        for (int s = 0; s < size; ++s){
+            int from = childOffsets[s];
+            int count = childOffsets[s + 1] - from;
+            if (count < 2) continue;
+            if (keys.length < count) keys = new long[count];
+            for (int j = 0; j < count; ++j){
+                int p = childStates[from + j];
+                int c = p - base[s];
+                keys[j] = (long) (c == 0 ? 0 : alphabet[c] + 1) << 32 | p;
+            }
+            Arrays.sort(keys, 0, count);
+            for (int j = 0; j < count; ++j){
+                childStates[from + j] = (int) keys[j];
+            }
         }
+        children = new int[][]{childOffsets, childStates};
+        this.children = children;
+        return children;
+    }
 
     /**
-     * @return the size of the keywords
+     * Parse text on a pool of threads. The text is cut into chunks, every chunk is scanned by its own task, starting
+     * the length of the longest key minus one chars early so that it reaches the chunk in the same state as a
+     * sequential scan. Only the hits ending inside a chunk are kept, so the result is exactly that of
+     * {@link #parseText(CharSequence)}, in the same order.
+     *
+     * @param text The text, it is read by several threads at once
+     * @param pool the pool to scan on
+     * @return a list of outputs
      */
-    public int size(){
-        return v.length;
+    public List<Hit<V>> parseText(final CharSequence text, ForkJoinPool pool){
+        int length = text.length();
+        int chunk = Math.max(MIN_CHUNK, length / (4 * pool.getParallelism()) + 1);
+        List<ForkJoinTask<List<Hit<V>>>> tasks = new ArrayList<>();
+        for (int from = 0; from < length; from += chunk){
+            final int begin = from;
+            final int end = Math.min(length, from + chunk);
+            tasks.add(pool.submit(new Callable<List<Hit<V>>>(){
+                @Override
+                public List<Hit<V>> call(){
+                    return parseChunk(text, begin, end);
+                }
+            }));
+        }
+        List<Hit<V>> collectedEmits = new ArrayList<>();
+        for (ForkJoinTask<List<Hit<V>>> task : tasks){
+            collectedEmits.addAll(task.join());
+        }
+        return collectedEmits;
     }
 
     /**
-     * A builder to build the AhoCorasickDoubleArrayTrie
+     * Parse a batch of documents, e.g. short messages, on a pool of threads. Every task scans a run of consecutive
+     * documents into primitive arrays, which are concatenated in the end.
+     *
+     * @param texts the documents
+     * @param pool  the pool to scan on, or {@code null} to scan in the calling thread
+     * @return the hits of every document
      */
-    private class Builder{
-        /**
+    public BatchResult<V> parseTexts(final List<? extends CharSequence> texts, ForkJoinPool pool){
+        int count = texts.size();
+        if (pool == null){
+            return parseBatch(texts, 0, count).toResult();
+        }
+        int batch = Math.max(MIN_BATCH, count / (8 * pool.getParallelism()) + 1);
+        List<ForkJoinTask<BatchPart>> tasks = new ArrayList<>();
+        for (int from = 0; from < count; from += batch){
+            final int begin = from;
+            final int end = Math.min(count, from + batch);
+            tasks.add(pool.submit(new Callable<BatchPart>(){
+                @Override
+                public BatchPart call(){
+                    return parseBatch(texts, begin, end);
+                }
+            }));
+        }
+        List<BatchPart> parts = new ArrayList<>(tasks.size());
+        int hitCount = 0;
+        for (ForkJoinTask<BatchPart> task : tasks){
+            BatchPart part = task.join();
+            parts.add(part);
+            hitCount += part.hits.size();
+        }
+        // a single copy of every part into columns of the exact size
+        BatchPart result = new BatchPart(count, hitCount);
+        for (BatchPart part : parts){
+            result.append(part);
+        }
+        return result.toResult();
+    }
+
+    /**
+     * Parse a batch of documents on a pool of threads
+     *
+     * @param texts the documents
+     * @param pool  the pool to scan on, or {@code null} to scan in the calling thread
+     * @return the hits of every document
+     */
+    public BatchResult<V> parseTexts(CharSequence[] texts, ForkJoinPool pool){
+        return parseTexts(Arrays.asList(texts), pool);
+    }
+
+    private BatchPart parseBatch(List<? extends CharSequence> texts, int from, int to){
+        BatchPart part = new BatchPart(to - from, 16 * (to - from));
+        for (int d = from; d < to; ++d){
+            parseText(texts.get(d), part.hits);
+            part.endDocument();
+        }
+        return part;
+    }
+
+    /**
+     * the hits of a run of documents
+     */
+    private class BatchPart{
+        private final int[] documentOffsets;
+        private int documentCount;
+        private final HitBuffer hits;
+
+        BatchPart(int documents, int capacity){
+            documentOffsets = new int[documents + 1];
+            hits = new HitBuffer(capacity);
+        }
+
+        void endDocument(){
+            documentOffsets[++documentCount] = hits.size();
+        }
+
+        void append(BatchPart part){
+            int offset = hits.size();
+            hits.addAll(part.hits);
+            for (int d = 1; d <= part.documentCount; ++d){
+                documentOffsets[++documentCount] = offset + part.documentOffsets[d];
+            }
+        }
+
+        BatchResult<V> toResult(){
+            return new BatchResult<>(documentOffsets, hits, v);
+        }
+    }
+
+    /**
+     * collect the hits ending in [begin + 1, end], warming the state up on the chars before begin
+     */
+    private List<Hit<V>> parseChunk(CharSequence text, int begin, int end){
+        List<Hit<V>> collectedEmits = new ArrayList<>();
+        int currentState = 0;
+        for (int i = Math.max(0, begin - maxLength + 1); i < begin; ++i){
+            currentState = getState(currentState, text.charAt(i));
+        }
+        for (int i = begin; i < end; ++i){
+            currentState = getState(currentState, text.charAt(i));
+            storeEmits(i + 1, currentState, collectedEmits);
+        }
+        return collectedEmits;
+    }
+
+
+    /**
+     * Processor handles the output when hit a keyword
+     */
+    public interface IHit<V>{
+        /**
+         * Hit a keyword, you can use some code like text.substring(begin, end) to get the keyword
+         *
+         * @param begin the beginning index, inclusive.
+         * @param end   the ending index, exclusive.
+         * @param value the value assigned to the keyword
+         */
+        void hit(int begin, int end, V value);
+    }
+
+    /**
+     * Processor handles the output when hit a keyword, with more detail
+     */
+    public interface IHitFull<V>{
+        /**
+         * Hit a keyword, you can use some code like text.substring(begin, end) to get the keyword
+         *
+         * @param begin the beginning index, inclusive.
+         * @param end   the ending index, exclusive.
+         * @param value the value assigned to the keyword
+         * @param index the index of the value assigned to the keyword, you can use the integer as a perfect hash value
+         */
+        void hit(int begin, int end, V value, int index);
+    }
+
+    /**
+     * Callback that allows to cancel the search process.
+     */
+    public interface IHitCancellable<V>{
+        /**
+         * Hit a keyword, you can use some code like text.substring(begin, end) to get the keyword
+         *
+         * @param begin the beginning index, inclusive.
+         * @param end   the ending index, exclusive.
+         * @param value the value assigned to the keyword
+         * @return Return true for continuing the search and false for stopping it.
+         */
+        boolean hit(int begin, int end, V value);
+    }
+
+    /**
+     * Computes the text written in place of a keyword by
+     * {@link #replace(CharSequence, MatchKind, IReplacement, Appendable)}
+     */
+    public interface IReplacement<V>{
+        /**
+         * @param begin the beginning index, inclusive.
+         * @param end   the ending index, exclusive.
+         * @param value the value assigned to the keyword
+         * @param index the index of the keyword
+         * @return the replacement, or {@code null} to keep the keyword
+         */
+        CharSequence replacement(int begin, int end, V value, int index);
+    }
+
+    /**
+     * A result output
+     *
+     * @param <V> the value type
+     */
+    public static class Hit<V>{
+        /**
+         * the beginning index, inclusive.
+         */
+        public final int begin;
+        /**
+         * the ending index, exclusive.
+         */
+        public final int end;
+        /**
+         * the value assigned to the keyword
+         */
+        public final V value;
+
+        public Hit(int begin, int end, V value){
+            this.begin = begin;
+            this.end = end;
+            this.value = value;
+        }
+
+        @Override
+        public String toString(){
+            return String.format("[%d:%d]=%s", begin, end, value);
+        }
+    }
+
+    /**
+     * transmit state, supports failure function. Without the table of {@link BuildOptions#dfa(boolean)}, a state
+     * other than the root is still checked and its failures followed down to the root, only the root itself is
+     * resolved by a single load from {@link #rootNext}.
+     *
+     * @param currentState
+     * @param character
+     * @return
+     */
+    int getState(int currentState, char character){
+        int c = code[Math.min(character, code.length - 1)];
+        if (dfaNext != null){
+            return dfaNext[dfaRow[currentState] + c];
+        }
+        while (currentState != 0){
+            int b = base[currentState];
+            int p = b + c;
+            if (p < check.length && b == check[p]){
+                return p;
+            }
+            currentState = fail[currentState];
+        }
+        return rootNext[c];
+    }
+
+    /**
+     * store output
+     *
+     * @param position
+     * @param currentState
+     * @param collectedEmits
+     */
+    private void storeEmits(int position, int currentState, List<Hit<V>> collectedEmits){
+        for (int j = outputOffsets[currentState], end = outputOffsets[currentState + 1]; j < end; ++j){
+            int hit = outputIds[j];
+            if (hit < 0){
+                // an output link, continue with the emits of the nearest accepting failure state
+                j = outputOffsets[-hit - 1] - 1;
+                end = outputOffsets[-hit];
+                continue;
+            }
+            collectedEmits.add(new Hit<>(position - l[hit], position, v[hit]));
+        }
+    }
+
+
+    /**
+     * transition of a state, if the state is root and it failed, then returns the root
+     *
+     * @param nodePos
+     * @param c
+     * @return
+     */
+    protected int transitionWithRoot(int nodePos, char c){
+        int b = base[nodePos];
+        int p;
+
+        p = b + code[Math.min(c, code.length - 1)];
+        if (p >= check.length || b != check[p]){
+            if (nodePos == 0) return 0;
+            return -1;
+        }
+        return p;
+    }
+
+    /**
+     * Build a AhoCorasickDoubleArrayTrie from a map
+     *
+     * @param map a map containing key-value pairs
+     */
+    public void build(Map<String, V> map){
+        build(map, new BuildOptions());
+    }
+
+    /**
+     * Build a AhoCorasickDoubleArrayTrie from a map
+     *
+     * @param map     a map containing key-value pairs
+     * @param options the layout of the automaton
+     */
+    public void build(Map<String, V> map, BuildOptions options){
+        new Builder(options).build(map);
+    }
+
+    /**
+     * Build a AhoCorasickDoubleArrayTrie from keys sorted in ascending order, without building an intermediate
+     * trie. The result is the same as building from a {@link TreeMap} holding the same pairs, while the peak memory
+     * stays close to the size of the automaton.
+     *
+     * @param sortedKeys keys in strictly ascending order of {@link String#compareTo(String)}, after folding when
+     *                   built with {@link BuildOptions#fold(Folding...)}
+     * @param values     the values, parallel to the keys
+     */
+    public void build(String[] sortedKeys, V[] values){
+        build(sortedKeys, values, new BuildOptions());
+    }
+
+    /**
+     * Build a AhoCorasickDoubleArrayTrie from keys sorted in ascending order, without building an intermediate
+     * trie
+     *
+     * @param sortedKeys keys in strictly ascending order of {@link String#compareTo(String)}, after folding when
+     *                   built with {@link BuildOptions#fold(Folding...)}
+     * @param values     the values, parallel to the keys
+     * @param options    the layout of the automaton
+     */
+    public void build(String[] sortedKeys, V[] values, BuildOptions options){
+        if (values.length != sortedKeys.length){
+            throw new IllegalArgumentException("Got " + sortedKeys.length + " keys but " + values.length + " values");
+        }
+        new Builder(options).build(sortedKeys, values);
+    }
+
+    /**
+     * Build a AhoCorasickDoubleArrayTrie from keys sorted in ascending order, e.g. the lines of a sorted
+     * dictionary file. The keys are collected before building, the values are all {@code null}, use the index
+     * reported by {@link IHitFull} to look them up.
+     *
+     * @param sortedKeys keys in strictly ascending order of {@link String#compareTo(String)}
+     * @param options    the layout of the automaton
+     */
+    @SuppressWarnings("unchecked")
+    public void build(Iterator<String> sortedKeys, BuildOptions options){
+        List<String> keys = new ArrayList<>();
+        while (sortedKeys.hasNext()){
+            keys.add(sortedKeys.next());
+        }
+        new Builder(options).build(keys.toArray(new String[keys.size()]), (V[]) new Object[keys.size()]);
+    }
+
+    /**
+     * A folding of characters, mapping every character to a single one so that the offsets of the hits stay those
+     * of the original text
+     */
+    public enum Folding{
+        /**
+         * the full-width forms U+FF01 to U+FF5E to their ASCII counterparts, and the ideographic space to a space
+         */
+        WIDTH{
+            @Override
+            public char fold(char c){
+                if (c >= '\uFF01' && c <= '\uFF5E') return (char) (c - 0xFEE0);
+                return c == '\u3000' ? ' ' : c;
+            }
+        },
+        /**
+         * the ASCII letters A to Z to lower case
+         */
+        ASCII_CASE{
+            @Override
+            public char fold(char c){
+                return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+            }
+        },
+        /**
+         * every character to the lower case of its upper case, the simple case folding of the Basic Multilingual
+         * Plane, e.g. the long s and the Kelvin sign fold like s and k. Surrogates are not folded.
+         */
+        SIMPLE_CASE{
+            @Override
+            public char fold(char c){
+                return Character.toLowerCase(Character.toUpperCase(c));
+            }
+        };
+
+        /**
+         * @param c a character
+         * @return the folded character
+         */
+        public abstract char fold(char c);
+    }
+
+    /**
+     * Options of {@link #build(Map, BuildOptions)}
+     */
+    public static class BuildOptions{
+        private boolean outputLinks;
+        private ForkJoinPool pool;
+        private boolean dfa;
+        private final EnumSet<Folding> foldings = EnumSet.noneOf(Folding.class);
+
+        /**
+         * Store only the keywords ending exactly at a state plus a link to its nearest accepting failure state,
+         * instead of copying the emits of the whole failure chain into every state. This saves a lot of memory
+         * when many keywords are suffixes of other keywords, at the cost of following the links while scanning.
+         * The hits ending at one position are then reported from the longest keyword to the shortest.
+         *
+         * @param enabled whether to use output links
+         * @return this
+         */
+        public BuildOptions outputLinks(boolean enabled){
+            this.outputLinks = enabled;
+            return this;
+        }
+
+        /**
+         * Build on a pool of threads: the subtries of the first characters are filled concurrently, and the
+         * failure function is computed level by level, the states of one level in parallel. The double array is
+         * still placed by a single thread, so the automaton is exactly the same as a sequential build. Only
+         * {@link #build(Map, BuildOptions)} builds in parallel, the sorted keys are placed in one pass.
+         * <p>
+         * The parallel phases are about 60% of a build, and splitting them costs one task per first character.
+         * Measured on random CJK keys, the parallel build is 10% to 40% slower below 100,000 keys and only breaks
+         * even from about 300,000 keys, so smaller maps, and pools with a parallelism of 1, are built in the
+         * calling thread.
+         * </p>
+         *
+         * @param pool the pool to build on, or {@code null} to build in the calling thread
+         * @return this
+         */
+        public BuildOptions parallel(ForkJoinPool pool){
+            this.pool = pool;
+            return this;
+        }
+
+        /**
+         * Fold the failure function into a complete transition table, so that scanning takes exactly one lookup
+         * per character whatever the text. The table costs 4 bytes per state and distinct character of the
+         * keywords, use it for small dictionaries or small alphabets. It is not part of the binary format, a
+         * {@link MappedAhoCorasickDoubleArrayTrie} still follows the failure function.
+         *
+         * @param enabled whether to build the transition table
+         * @return this
+         */
+        public BuildOptions dfa(boolean enabled){
+            this.dfa = enabled;
+            return this;
+        }
+
+        /**
+         * Match the text folded, e.g. case-insensitively. The keywords are folded when building, and the code table
+         * gives every character the code of its folding, so a scan folds the text in place at no extra cost. The
+         * foldings apply in the order of their declaration. The code table grows up to the largest character
+         * which folds onto a character of the keywords, i.e. to 128 KB with {@link Folding#WIDTH}. Keywords which
+         * become equal once folded are all reported.
+         *
+         * @param foldings the foldings to apply
+         * @return this
+         */
+        public BuildOptions fold(Folding... foldings){
+            Collections.addAll(this.foldings, foldings);
+            return this;
+        }
+
+        /**
+         * @return the foldings to apply
+         */
+        Set<Folding> foldings(){
+            return foldings;
+        }
+    }
+
+    /**
+     * Save the automaton in the binary format of {@link MappedAhoCorasickDoubleArrayTrie}. The values are not
+     * written, keep them in the order of the map passed to {@link #build(Map)} and hand them to the loader.
+     *
+     * @param out the output stream
+     * @throws IOException if an I/O error occurs
+     */
+    public void save(DataOutputStream out) throws IOException{
+        out.writeInt(MappedAhoCorasickDoubleArrayTrie.MAGIC);
+        out.writeInt(MappedAhoCorasickDoubleArrayTrie.VERSION);
+        out.writeInt(size);
+        out.writeInt(code.length);
+        for (char c : code){
+            out.writeChar(c);
+        }
+        if ((code.length & 1) != 0){
+            // keep the int arrays aligned
+            out.writeChar(0);
+        }
+        writeIntArray(out, base);
+        writeIntArray(out, check);
+        writeIntArray(out, fail);
+        writeIntArray(out, outputOffsets);
+        writeIntArray(out, outputIds);
+        writeIntArray(out, l);
+    }
+
+    /**
+     * Save the automaton to a file in the binary format of {@link MappedAhoCorasickDoubleArrayTrie}
+     *
+     * @param file the file to write
+     * @throws IOException if an I/O error occurs
+     */
+    public void save(File file) throws IOException{
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try{
+            save(out);
+        }finally{
+            out.close();
+        }
+    }
+
+    private static void writeIntArray(DataOutputStream out, int[] array) throws IOException{
+        out.writeInt(array.length);
+        for (int value : array){
+            out.writeInt(value);
+        }
+    }
+
+    /**
+     * @return the size of the keywords
+     */
+    public int size(){
+        return v.length;
+    }
+
+    /**
+     * Get the value of a keyword by its index
+     *
+     * @param index the index of the keyword, as reported by {@link IHitFull} or {@link HitBuffer#index(int)}
+     * @return the value
+     */
+    public V get(int index){
+        return v[index];
+    }
+
+    /**
+     * Look a keyword up by walking the double array from the root
+     *
+     * @param key the key, folded like the text of a scan when built with {@link BuildOptions#fold(Folding...)}
+     * @return the index of the keyword, or -1 if it is not a keyword
+     */
+    public int exactMatch(CharSequence key){
+        return exactMatch(key, 0, key.length());
+    }
+
+    /**
+     * Look a part of a text up, without allocating anything
+     *
+     * @param text  the text
+     * @param begin the beginning index of the key, inclusive.
+     * @param end   the ending index of the key, exclusive.
+     * @return the index of the keyword, or -1 if it is not a keyword
+     */
+    public int exactMatch(CharSequence text, int begin, int end){
+        int state = transition(text, begin, end);
+        return state < 0 ? -1 : terminal(base[state]);
+    }
+
+    /**
+     * Find the keywords which are prefixes of a part of a text, walking the double array from the root until the
+     * first missing transition. Nothing is allocated.
+     *
+     * @param text      the text
+     * @param offset    where the keywords begin
+     * @param limit     the end of the part of the text, exclusive
+     * @param processor receives the keywords from the shortest to the longest, as hits beginning at offset
+     */
+    public void commonPrefixSearch(CharSequence text, int offset, int limit, IHitFull<V> processor){
+        int b = base[0];
+        for (int i = offset; i < limit; ){
+            int p = b + code[Math.min(text.charAt(i), code.length - 1)];
+            if (p >= check.length || check[p] != b) return;
+            b = base[p];
+            ++i;
+            int index = terminal(b);
+            if (index >= 0) processor.hit(offset, i, v[index], index);
+        }
+    }
+
+    /**
+     * Find the keywords which are prefixes of a part of a text
+     *
+     * @param text   the text
+     * @param offset where the keywords begin
+     * @param limit  the end of the part of the text, exclusive
+     * @return the keywords from the shortest to the longest, as hits beginning at offset
+     */
+    public List<Hit<V>> commonPrefixSearch(CharSequence text, int offset, int limit){
+        final List<Hit<V>> collectedEmits = new ArrayList<>();
+        commonPrefixSearch(text, offset, limit, new IHitFull<V>(){
+            @Override
+            public void hit(int begin, int end, V value, int index){
+                collectedEmits.add(new Hit<>(begin, end, value));
+            }
+        });
+        return collectedEmits;
+    }
+
+    /**
+     * Enumerate the keywords beginning with a prefix in ascending order, e.g. for autocompletion. The
+     * enumeration is lazy, stop iterating once enough keywords have been read.
+     *
+     * @param prefix the prefix, folded like the text of a scan when built with {@link BuildOptions#fold(Folding...)}
+     * @return the keywords and their values
+     */
+    public Iterator<Map.Entry<String, V>> predictiveSearch(CharSequence prefix){
+        int state = transition(prefix, 0, prefix.length());
+        if (state < 0) return Collections.<Map.Entry<String, V>>emptyList().iterator();
+        // spell the prefix as stored, i.e. folded
+        char[] key = new char[prefix.length()];
+        for (int i = 0; i < key.length; ++i){
+            key[i] = alphabet[code[Math.min(prefix.charAt(i), code.length - 1)]];
+        }
+        return entries(state, new String(key));
+    }
+
+    /**
+     * @return the state reached from the root on a part of a text, or -1 when a transition is missing
+     */
+    private int transition(CharSequence text, int begin, int end){
+        int state = 0;
+        for (int i = begin; i < end; ++i){
+            int b = base[state];
+            int p = b + code[Math.min(text.charAt(i), code.length - 1)];
+            if (p >= check.length || check[p] != b) return -1;
+            state = p;
+        }
+        return state;
+    }
+
+    /**
+     * @param b the base of a state
+     * @return the index of the keyword ending at the state, or -1
+     */
+    private int terminal(int b){
+        // the terminal of a keyword sits at code 0
+        return b < check.length && check[b] == b && base[b] < 0 ? -base[b] - 1 : -1;
+    }
+
+    /**
+     * @return the keywords below a state and their values in ascending order
+     */
+    private Iterator<Map.Entry<String, V>> entries(int state, CharSequence prefix){
+        final KeyIterator keys = new KeyIterator(state, prefix);
+        return new Iterator<Map.Entry<String, V>>(){
+            @Override
+            public boolean hasNext(){
+                return keys.hasNext();
+            }
+
+            @Override
+            public Map.Entry<String, V> next(){
+                String key = keys.next();
+                return new AbstractMap.SimpleImmutableEntry<>(key, v[keys.index()]);
+            }
+
+            @Override
+            public void remove(){
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Get the value of a keyword
+     *
+     * @param key the key
+     * @return the value, or {@code null} if it is not a keyword
+     */
+    public V get(CharSequence key){
+        int index = exactMatch(key);
+        return index < 0 ? null : v[index];
+    }
+
+    /**
+     * A read-only view of the keywords and their values, backed by the double array. Looking a key up walks the
+     * transitions from the root, iterating enumerates the keywords in ascending order. When built with folding,
+     * the keys are the folded keywords and looking up any of their foldings finds them.
+     *
+     * @return the view
+     */
+    public Map<String, V> asMap(){
+        return new AbstractMap<String, V>(){
+            private int size = -1;
+
+            @Override
+            public V get(Object key){
+                return key instanceof CharSequence ? AhoCorasickDoubleArrayTrie.this.get((CharSequence) key) : null;
+            }
+
+            @Override
+            public boolean containsKey(Object key){
+                return key instanceof CharSequence && exactMatch((CharSequence) key) >= 0;
+            }
+
+            @Override
+            public Set<Entry<String, V>> entrySet(){
+                return new AbstractSet<Entry<String, V>>(){
+                    @Override
+                    public Iterator<Entry<String, V>> iterator(){
+                        return entries(0, "");
+                    }
+
+                    @Override
+                    public int size(){
+                        if (size < 0){
+                            // one terminal per distinct key
+                            int count = 0;
+                            for (int p = 1; p < check.length; ++p){
+                                if (check[p] != 0 && base[p] < 0) ++count;
+                            }
+                            size = count;
+                        }
+                        return size;
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Enumerates the keywords below a state in ascending order, depth first over the sorted children
+     */
+    private class KeyIterator implements Iterator<String>{
+        private final int[] childOffsets;
+        private final int[] childStates;
+        private final StringBuilder key;
+        private final int prefixLength;
+        private int[] states = new int[16];
+        private int[] cursors = new int[16];
+        private int top;
+        private String next;
+        private int nextIndex = -1;
+        private int index = -1;
+
+        /**
+         * @param state  the state to enumerate from
+         * @param prefix the key of the state
+         */
+        KeyIterator(int state, CharSequence prefix){
+            int[][] children = children();
+            childOffsets = children[0];
+            childStates = children[1];
+            key = new StringBuilder(prefix);
+            prefixLength = prefix.length();
+            states[0] = state;
+            cursors[0] = childOffsets[state];
+            advance();
+        }
+
+        private void advance(){
+            while (top >= 0){
+                int s = states[top];
+                int j = cursors[top];
+                if (j == childOffsets[s + 1]){
+                    if (--top >= 0) key.setLength(prefixLength + top);
+                    continue;
+                }
+                cursors[top] = j + 1;
+                int child = childStates[j];
+                if (base[child] < 0){
+                    next = key.toString();
+                    nextIndex = -base[child] - 1;
+                    return;
+                }
+                key.append(alphabet[child - base[s]]);
+                if (++top == states.length){
+                    states = Arrays.copyOf(states, top * 2);
+                    cursors = Arrays.copyOf(cursors, top * 2);
+                }
+                states[top] = child;
+                cursors[top] = childOffsets[child];
+            }
+            next = null;
+        }
+
+        @Override
+        public boolean hasNext(){
+            return next != null;
+        }
+
+        @Override
+        public String next(){
+            if (next == null) throw new NoSuchElementException();
+            String key = next;
+            index = nextIndex;
+            advance();
+            return key;
+        }
+
+        /**
+         * @return the index of the keyword last returned by {@link #next()}
+         */
+        int index(){
+            return index;
+        }
+
+        @Override
+        public void remove(){
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * A builder to build the AhoCorasickDoubleArrayTrie
+     */
+    private class Builder{
+        /**
+         * the options of this build
+         */
+        private final BuildOptions options;
+        /**
          * the root state of trie
          */
-        private State rootState = new State();
+        private State rootState = new State();
+        /**
+         * whether the position has been used
+         */
+        private boolean[] used;
+        /**
+         * the allocSize of the dynamic array
+         */
+        private int allocSize;
+        /**
+         * the next position to check unused memory
+         */
+        private int nextCheckPos;
         /**
-         * whether the position has been used
+         * the codes of the siblings being inserted, 0 stands for the end of a keyword, sorted by {@link #place()}
          */
-        private boolean[] used;
+        private int[] siblingCodes = new int[16];
         /**
-         * the allocSize of the dynamic array
+         * the amount of the siblings being inserted
          */
-        private int allocSize;
+        private int siblingCount;
         /**
-         * a parameter controls the memory growth speed of the dynamic array
+         * the doubly linked lists of empty positions, -1 terminates a list. The open list holds the candidates
+         * for new siblings in ascending order. A position which failed too many times as a candidate is moved to
+         * the closed list, which every set of siblings visits briefly before scanning the open list, so that the
+         * holes left behind by the scan still get filled.
          */
-        private int progress;
+        private int[] nextFree;
+        private int[] prevFree;
         /**
-         * the next position to check unused memory
+         * how many times an empty position failed as a candidate, MAX_TRIAL meaning it is in the closed list
          */
-        private int nextCheckPos;
+        private byte[] trials;
+        /**
+         * the first and the last position of the open and the closed list, -1 if empty
+         */
+        private final int[] firstFree = {-1, -1};
+        private final int[] lastFree = {-1, -1};
+        private static final int OPEN = 0;
+        private static final int CLOSED = 1;
+        /**
+         * after this many failures an empty position moves to the closed list
+         */
+        private static final int MAX_TRIAL = 8;
+        /**
+         * how many closed positions a set of siblings tries before falling back to the open list
+         */
+        private static final int MAX_CLOSED_VISIT = 16;
+        /**
+         * the amount of keywords from which a build uses the pool of the options
+         */
+        private static final int PARALLEL_THRESHOLD = 300000;
         /**
-         * the size of the key-pair sets
+         * the rounds of folding after which a character must have reached its fixed point
          */
-        private int keySize;
+        private static final int MAX_FOLD_ROUNDS = 8;
+        /**
+         * the pool to build on, null to build in the calling thread
+         */
+        private ForkJoinPool pool;
+        /**
+         * the nearest accepting failure state of every position, only used when building from sorted keys
+         */
+        private int[] positionLinks;
+        /**
+         * the amount of distinct characters in the keywords
+         */
+        private int alphabetSize;
+        /**
+         * the folding of every character, null when not folding. Folding a folded character again gives the same
+         * character, {@link #foldCode()} relies on it to give every character the code of its folding.
+         */
+        private char[] folding;
+
+        Builder(BuildOptions options){
+            this.options = options;
+            if (!options.foldings.isEmpty()){
+                folding = new char[Character.MAX_VALUE + 1];
+                for (int c = 0; c <= Character.MAX_VALUE; ++c){
+                    // the case mappings of the JDK are not guaranteed to be idempotent, fold until it settles
+                    char f = (char) c;
+                    for (int round = 0; round < MAX_FOLD_ROUNDS; ++round){
+                        char previous = f;
+                        for (Folding each : options.foldings){
+                            f = each.fold(f);
+                        }
+                        if (f == previous) break;
+                        if (round == MAX_FOLD_ROUNDS - 1){
+                            throw new IllegalStateException("The folding of " + (char) c + " does not settle");
+                        }
+                    }
+                    folding[c] = f;
+                }
+            }
+        }
 
         /**
          * Build from a map
@@ -348,34 +1628,100 @@ public class AhoCorasickDoubleArrayTrie<V> implements Serializable{
          */
         @SuppressWarnings("unchecked")
         public void build(Map<String, V> map){
+            size = 0;
+            depth = null;
+            children = null;
+            dfaNext = dfaRow = null;
             v = (V[]) map.values().toArray();
             l = new int[v.length];
-            Set<String> keySet = map.keySet();
+            Collection<String> keySet = fold(map.keySet());
+            pool = options.pool != null && options.pool.getParallelism() > 1 && keySet.size() >= PARALLEL_THRESHOLD
+                    ? options.pool : null;
+            long totalLength = constructCode(keySet);
             addAllKeyword(keySet);
-            buildDoubleArrayTrie(keySet.size());
+            buildDoubleArrayTrie(estimateSize(keySet.size(), totalLength));
             used = null;
+            nextFree = prevFree = null;
+            trials = null;
             constructFailureStates();
             rootState = null;
             loseWeight();
+            constructRootNext();
+            maxLength = maxLength();
+            if (options.dfa) constructDfa();
         }
 
         /**
-         * fetch siblings of a parent node
+         * Build from keys in ascending order, placing the siblings straight into the double array without
+         * building a trie of states first. The failure function is computed on the arrays while placing them.
          *
-         * @param parent   parent node
-         * @param siblings parent node's child nodes, i . e . the siblings
-         * @return the amount of the siblings
+         * @param keys   keys in strictly ascending order
+         * @param values the values, parallel to keys
          */
-        private int fetch(State parent, List<Map.Entry<Integer, State>> siblings){
-            if (parent.isAcceptable()){
-                State fakeNode = new State(-(parent.getDepth() + 1));
-                fakeNode.addEmit(parent.getLargestValueId());
-                siblings.add(new AbstractMap.SimpleEntry<>(0, fakeNode));
+        public void build(String[] keys, V[] values){
+            size = 0;
+            depth = null;
+            children = null;
+            dfaNext = dfaRow = null;
+            rootState = null;
+            v = values;
+            l = new int[keys.length];
+            keys = fold(keys);
+            for (int i = 0; i < keys.length; ++i){
+                if (i > 0 && keys[i - 1].compareTo(keys[i]) >= 0){
+                    throw new IllegalArgumentException("Keys are not in strictly ascending order at index " + i + ": " + keys[i]);
+                }
+                l[i] = keys[i].length();
             }
-            for (Map.Entry<Character, State> entry : parent.getSuccess().entrySet()){
-                siblings.add(new AbstractMap.SimpleEntry<>(entry.getKey() + 1, entry.getValue()));
+            long totalLength = constructCode(Arrays.asList(keys));
+            fail = null;
+            positionLinks = new int[0];
+            resize(estimateSize(keys.length, totalLength));
+
+            base[0] = 1;
+            nextCheckPos = 0;
+            if (keys.length != 0)
+                insert(keys);
+            used = null;
+            nextFree = prevFree = null;
+            trials = null;
+            constructOutput();
+            positionLinks = null;
+            fail = Arrays.copyOf(fail, size + 1);
+            loseWeight();
+            constructRootNext();
+            maxLength = maxLength();
+            if (options.dfa) constructDfa();
+        }
+
+        /**
+         * @param keys the keys
+         * @return the keys folded, the same keys when not folding
+         */
+        private Collection<String> fold(Collection<String> keys){
+            if (folding == null) return keys;
+            List<String> folded = new ArrayList<>(keys.size());
+            for (String key : keys){
+                folded.add(fold(key));
+            }
+            return folded;
+        }
+
+        private String[] fold(String[] keys){
+            if (folding == null) return keys;
+            String[] folded = new String[keys.length];
+            for (int i = 0; i < keys.length; ++i){
+                folded[i] = fold(keys[i]);
             }
-            return siblings.size();
+            return folded;
+        }
+
+        private String fold(String key){
+            char[] chars = key.toCharArray();
+            for (int i = 0; i < chars.length; ++i){
+                chars[i] = folding[chars[i]];
+            }
+            return new String(chars);
         }
 
         /**
@@ -386,8 +1732,8 @@ public class AhoCorasickDoubleArrayTrie<V> implements Serializable{
          */
         private void addKeyword(String keyword, int index){
             State currentState = this.rootState;
-            for (Character character : keyword.toCharArray()){
-                currentState = currentState.addState(character);
+            for (int i = 0; i < keyword.length(); ++i){
+                currentState = currentState.addState(keyword.charAt(i));
             }
             currentState.addEmit(index);
             l[index] = keyword.length();
@@ -399,69 +1745,378 @@ public class AhoCorasickDoubleArrayTrie<V> implements Serializable{
          * @param keywordSet the collection holding keywords
          */
         private void addAllKeyword(Collection<String> keywordSet){
+            if (pool != null){
+                addAllKeywordParallel(keywordSet.toArray(new String[keywordSet.size()]));
+                return;
+            }
             int i = 0;
             for (String keyword : keywordSet){
                 addKeyword(keyword, i++);
             }
         }
 
+        /**
+         * add keywords on the pool, the keywords sharing their first character are added to its subtrie by one
+         * task, so that no two tasks touch the same state
+         *
+         * @param keywords the keywords, the index of a keyword is its id
+         */
+        private void addAllKeywordParallel(final String[] keywords){
+            // create the states of depth one, then bucket the ids by the rank of their first character
+            int[] rankOfChar = new int[Character.MAX_VALUE + 1];
+            for (int i = 0; i < keywords.length; ++i){
+                if (keywords[i].isEmpty()){
+                    addKeyword(keywords[i], i);
+                }else{
+                    rootState.addState(keywords[i].charAt(0));
+                }
+            }
+            int childCount = rootState.getChildCount();
+            for (int r = 0; r < childCount; ++r){
+                rankOfChar[rootState.getChildLabel(r)] = r;
+            }
+            final int[] bucketOffsets = new int[childCount + 1];
+            for (String keyword : keywords){
+                if (!keyword.isEmpty()) ++bucketOffsets[rankOfChar[keyword.charAt(0)] + 1];
+            }
+            for (int r = 0; r < childCount; ++r){
+                bucketOffsets[r + 1] += bucketOffsets[r];
+            }
+            final int[] ids = new int[bucketOffsets[childCount]];
+            int[] cursor = Arrays.copyOf(bucketOffsets, childCount);
+            for (int i = 0; i < keywords.length; ++i){
+                if (!keywords[i].isEmpty()) ids[cursor[rankOfChar[keywords[i].charAt(0)]]++] = i;
+            }
+
+            List<RecursiveAction> tasks = new ArrayList<>(childCount);
+            for (int r = 0; r < childCount; ++r){
+                final State firstState = rootState.getChild(r);
+                final int from = bucketOffsets[r];
+                final int to = bucketOffsets[r + 1];
+                tasks.add(new RecursiveAction(){
+                    @Override
+                    protected void compute(){
+                        for (int j = from; j < to; ++j){
+                            String keyword = keywords[ids[j]];
+                            State currentState = firstState;
+                            for (int i = 1; i < keyword.length(); ++i){
+                                currentState = currentState.addState(keyword.charAt(i));
+                            }
+                            currentState.addEmit(ids[j]);
+                            l[ids[j]] = keyword.length();
+                        }
+                    }
+                });
+            }
+            for (RecursiveAction task : tasks){
+                pool.execute(task);
+            }
+            for (RecursiveAction task : tasks){
+                task.join();
+            }
+        }
+
         /**
          * construct failure table
          */
         private void constructFailureStates(){
             fail = new int[size + 1];
-            output = new int[size + 1][];
+            int[] outputLinks = options.outputLinks ? new int[size + 1] : null;
+            if (pool != null){
+                constructFailureStatesParallel(outputLinks);
+                return;
+            }
+            List<State> outputStates = new ArrayList<>();
             Queue<State> queue = new ArrayDeque<>();
-            for (State depthOneState : this.rootState.getStates()){
+            for (int i = 0; i < this.rootState.getChildCount(); ++i){
+                State depthOneState = this.rootState.getChild(i);
                 depthOneState.setFailure(this.rootState, fail);
                 queue.add(depthOneState);
-                constructOutput(depthOneState);
+                if (depthOneState.getEmitCount() != 0) outputStates.add(depthOneState);
             }
             while (!queue.isEmpty()){
                 State currentState = queue.remove();
-                for (Character transition : currentState.getTransitions()){
-                    State targetState = currentState.nextState(transition);
+                for (int i = 0; i < currentState.getChildCount(); ++i){
+                    State targetState = currentState.getChild(i);
                     queue.add(targetState);
-                    State traceFailureState = currentState.failure();
-                    while (traceFailureState.nextState(transition) == null){
-                        traceFailureState = traceFailureState.failure();
+                    constructFailureState(currentState, i, outputLinks);
+                    if (targetState.getEmitCount() != 0 || outputLinks != null && outputLinks[targetState.getIndex()] != 0){
+                        outputStates.add(targetState);
+                    }
+                }
+            }
+            constructOutput(outputStates, outputLinks);
+        }
+
+        /**
+         * construct the failure of a child state, the failures of all shallower states being known
+         *
+         * @param currentState the parent
+         * @param i            the rank of the child
+         * @param outputLinks  the nearest accepting failure state of every state, or null when emits are copied
+         */
+        private void constructFailureState(State currentState, int i, int[] outputLinks){
+            char transition = currentState.getChildLabel(i);
+            State targetState = currentState.getChild(i);
+            State traceFailureState = currentState.failure();
+            while (traceFailureState.nextState(transition) == null){
+                traceFailureState = traceFailureState.failure();
+            }
+            State newFailureState = traceFailureState.nextState(transition);
+            targetState.setFailure(newFailureState, fail);
+            if (outputLinks == null){
+                targetState.addEmit(newFailureState);
+            }else{
+                // link to the failure state if it accepts, otherwise share its link
+                int failureIndex = newFailureState.getIndex();
+                outputLinks[targetState.getIndex()] = newFailureState.getEmitCount() == 0 ? outputLinks[failureIndex] : failureIndex;
+            }
+        }
+
+        /**
+         * construct failure table on the pool, one level of the trie at a time. The failure of a state and the
+         * emits it copies only depend on shallower states, so the states of one level are independent.
+         *
+         * @param outputLinks the nearest accepting failure state of every state, or null when emits are copied
+         */
+        private void constructFailureStatesParallel(int[] outputLinks){
+            List<State> outputStates = new ArrayList<>();
+            List<State> level = new ArrayList<>();
+            for (int i = 0; i < this.rootState.getChildCount(); ++i){
+                State depthOneState = this.rootState.getChild(i);
+                depthOneState.setFailure(this.rootState, fail);
+                level.add(depthOneState);
+            }
+            while (!level.isEmpty()){
+                List<State> nextLevel = new ArrayList<>();
+                for (State state : level){
+                    if (state.getEmitCount() != 0 || outputLinks != null && outputLinks[state.getIndex()] != 0){
+                        outputStates.add(state);
+                    }
+                    for (int i = 0; i < state.getChildCount(); ++i){
+                        nextLevel.add(state.getChild(i));
+                    }
+                }
+                pool.invoke(new FailureTask(level, 0, level.size(), outputLinks));
+                level = nextLevel;
+            }
+            constructOutput(outputStates, outputLinks);
+        }
+
+        /**
+         * construct the failures of the children of a range of states of one level
+         */
+        private class FailureTask extends RecursiveAction{
+            private static final long serialVersionUID = 1L;
+            /**
+             * below this many parents a task does not split any more
+             */
+            private static final int THRESHOLD = 1024;
+            private final List<State> level;
+            private final int from;
+            private final int to;
+            private final int[] outputLinks;
+
+            FailureTask(List<State> level, int from, int to, int[] outputLinks){
+                this.level = level;
+                this.from = from;
+                this.to = to;
+                this.outputLinks = outputLinks;
+            }
+
+            @Override
+            protected void compute(){
+                if (to - from <= THRESHOLD){
+                    for (int j = from; j < to; ++j){
+                        State currentState = level.get(j);
+                        for (int i = 0; i < currentState.getChildCount(); ++i){
+                            constructFailureState(currentState, i, outputLinks);
+                        }
+                    }
+                    return;
+                }
+                int middle = (from + to) >>> 1;
+                ForkJoinTask.invokeAll(new FailureTask(level, from, middle, outputLinks), new FailureTask(level, middle, to, outputLinks));
+            }
+        }
+
+        /**
+         * construct output table, packing the emits of every state into outputOffsets and outputIds
+         *
+         * @param outputStates the states having at least one emit or output link
+         * @param outputLinks  the nearest accepting failure state of every state, or null when emits are copied
+         */
+        private void constructOutput(List<State> outputStates, int[] outputLinks){
+            outputOffsets = new int[size + 2];
+            for (State state : outputStates){
+                int index = state.getIndex();
+                outputOffsets[index + 1] = state.getEmitCount() + (outputLinks != null && outputLinks[index] != 0 ? 1 : 0);
+            }
+            for (int i = 1; i < outputOffsets.length; ++i){
+                outputOffsets[i] += outputOffsets[i - 1];
+            }
+            outputIds = new int[outputOffsets[size + 1]];
+            for (State state : outputStates){
+                int index = state.getIndex();
+                int j = outputOffsets[index];
+                for (int i = 0; i < state.getEmitCount(); ++i){
+                    outputIds[j++] = state.getEmit(i);
+                }
+                if (outputLinks != null && outputLinks[index] != 0){
+                    outputIds[j] = -outputLinks[index] - 1;
+                }
+            }
+        }
+
+        /**
+         * construct output table from the output links collected while building from sorted keys
+         */
+        private void constructOutput(){
+            outputOffsets = new int[size + 2];
+            for (int state = 0; state < size; ++state){
+                if (!isState(state)) continue;
+                int count = keywordAt(state) >= 0 ? 1 : 0;
+                if (options.outputLinks){
+                    if (positionLinks[state] != 0) ++count;
+                }else{
+                    for (int link = positionLinks[state]; link != 0; link = positionLinks[link]){
+                        ++count;
                     }
-                    State newFailureState = traceFailureState.nextState(transition);
-                    targetState.setFailure(newFailureState, fail);
-                    targetState.addEmit(newFailureState.emit());
-                    constructOutput(targetState);
+                }
+                outputOffsets[state + 1] = count;
+            }
+            for (int i = 1; i < outputOffsets.length; ++i){
+                outputOffsets[i] += outputOffsets[i - 1];
+            }
+            outputIds = new int[outputOffsets[size + 1]];
+            for (int state = 0; state < size; ++state){
+                int j = outputOffsets[state];
+                if (j == outputOffsets[state + 1]) continue;
+                int keyword = keywordAt(state);
+                if (keyword >= 0){
+                    outputIds[j++] = keyword;
+                }
+                if (options.outputLinks){
+                    if (positionLinks[state] != 0) outputIds[j] = -positionLinks[state] - 1;
+                }else{
+                    for (int link = positionLinks[state]; link != 0; link = positionLinks[link]){
+                        outputIds[j++] = keywordAt(link);
+                    }
+                    // same order as the emits of a state, the largest keyword id first
+                    Arrays.sort(outputIds, outputOffsets[state], j);
+                    for (int lo = outputOffsets[state], hi = j - 1; lo < hi; ++lo, --hi){
+                        int tmp = outputIds[lo];
+                        outputIds[lo] = outputIds[hi];
+                        outputIds[hi] = tmp;
+                    }
+                }
+            }
+        }
+
+        /**
+         * @param position a position in the double array
+         * @return whether the position holds a state rather than the end of a keyword or nothing
+         */
+        private boolean isState(int position){
+            return position == 0 || check[position] != 0 && base[position] > 0;
+        }
+
+        /**
+         * @param state a state
+         * @return the id of the keyword ending at the state, or -1
+         */
+        private int keywordAt(int state){
+            int b = base[state];
+            return b > 0 && check[b] == b ? -base[b] - 1 : -1;
+        }
+
+        /**
+         * construct the code table, numbering the characters of the keywords from 1 by descending frequency, so
+         * that the siblings of frequent characters are packed close together. Ties are broken by the character,
+         * so the table only depends on the set of keywords.
+         *
+         * @param keywords the keywords
+         * @return the sum of the lengths of the keywords
+         */
+        private long constructCode(Collection<String> keywords){
+            long totalLength = 0;
+            int[] frequency = new int[Character.MAX_VALUE + 1];
+            int maxChar = -1;
+            for (String keyword : keywords){
+                totalLength += keyword.length();
+                for (int i = 0; i < keyword.length(); ++i){
+                    char c = keyword.charAt(i);
+                    ++frequency[c];
+                    maxChar = Math.max(maxChar, c);
+                }
+            }
+            alphabetSize = 0;
+            long[] ranks = new long[maxChar + 1];
+            for (int c = 0; c <= maxChar; ++c){
+                if (frequency[c] != 0){
+                    ranks[alphabetSize++] = (long) (Integer.MAX_VALUE - frequency[c]) << 16 | c;
                 }
             }
+            if (alphabetSize + 1 > Character.MAX_VALUE){
+                // the codes 1 to alphabetSize and the unused one must fit in a char
+                throw new IllegalArgumentException("Too many distinct characters in the keywords: " + alphabetSize
+                        + ", at most " + (Character.MAX_VALUE - 1) + " are supported");
+            }
+            Arrays.sort(ranks, 0, alphabetSize);
+            // the characters absent from the keywords share a code no sibling ever takes
+            code = new char[maxChar + 2];
+            Arrays.fill(code, (char) (alphabetSize + 1));
+            alphabet = new char[alphabetSize + 2];
+            for (int i = 0; i < alphabetSize; ++i){
+                code[(int) (ranks[i] & 0xFFFF)] = (char) (i + 1);
+                alphabet[i + 1] = (char) (ranks[i] & 0xFFFF);
+            }
+            if (folding != null) foldCode();
+            return totalLength;
         }
 
         /**
-         * construct output table
+         * give every character folding onto a character of the keywords the code of the latter, extending the
+         * table up to the largest such character
          */
-        private void constructOutput(State targetState){
-            Collection<Integer> emit = targetState.emit();
-            if (emit == null || emit.isEmpty()) return;
-            int[] constructedOutput = new int[emit.size()];
-            Iterator<Integer> it = emit.iterator();
-            for (int i = 0; i < constructedOutput.length; ++i){
-                constructedOutput[i] = it.next();
+        private void foldCode(){
+            char unused = code[code.length - 1];
+            int keyEnd = code.length - 1;
+            int length = code.length;
+            for (int c = 0; c < folding.length; ++c){
+                if (folding[c] != c && folding[c] < keyEnd && code[folding[c]] != unused) length = c + 2;
+            }
+            if (length > code.length){
+                code = Arrays.copyOf(code, length);
+                Arrays.fill(code, keyEnd, length, unused);
+            }
+            for (int c = 0; c < length - 1; ++c){
+                if (folding[c] != c && folding[c] < keyEnd) code[c] = code[folding[c]];
             }
-            AhoCorasickDoubleArrayTrie.this.output[targetState.getIndex()] = constructedOutput;
         }
 
-        private void buildDoubleArrayTrie(int keySize){
-            progress = 0;
-            this.keySize = keySize;
-            resize(65536 * 32); // 32
+        /**
+         * estimate the size of the double array, so that most builds never have to grow it
+         *
+         * @param keyCount    the amount of keywords
+         * @param totalLength the sum of the lengths of the keywords
+         * @return the initial size
+         */
+        private int estimateSize(int keyCount, long totalLength){
+            // every character opens at most one state and every keyword one leaf, the siblings of the root
+            // reach the size of the alphabet, the free list usually leaves about a fifth of the positions empty
+            long positions = totalLength + keyCount + 1;
+            return (int) Math.min(Integer.MAX_VALUE - 8, alphabetSize + 2 + positions + (positions >> 2));
+        }
+
+        private void buildDoubleArrayTrie(int initialSize){
+            resize(initialSize);
 
             base[0] = 1;
             nextCheckPos = 0;
 
-            State rootNode = this.rootState;
-
-            List<Map.Entry<Integer, State>> siblings = new ArrayList<>(rootNode.getSuccess().entrySet().size());
-            fetch(rootNode, siblings);
-            if (!siblings.isEmpty())
-                insert(siblings);
+            if (this.rootState.getChildCount() != 0)
+                insert(this.rootState);
         }
 
         /**
@@ -471,122 +2126,228 @@ public class AhoCorasickDoubleArrayTrie<V> implements Serializable{
          * @return the new-allocated-size
          */
         private int resize(int newSize){
-            int[] base2 = new int[newSize];
-            int[] check2 = new int[newSize];
-            boolean[] used2 = new boolean[newSize];
-            if (allocSize > 0){
-                System.arraycopy(base, 0, base2, 0, allocSize);
-                System.arraycopy(check, 0, check2, 0, allocSize);
-                System.arraycopy(used, 0, used2, 0, allocSize);
-            }
-
-            base = base2;
-            check = check2;
-            used = used2;
+            if (allocSize == 0){
+                base = new int[newSize];
+                check = new int[newSize];
+                used = new boolean[newSize];
+            }else{
+                base = Arrays.copyOf(base, newSize);
+                check = Arrays.copyOf(check, newSize);
+                used = Arrays.copyOf(used, newSize);
+            }
+            // append the new positions to the free list, the root at position 0 is never free
+            nextFree = nextFree == null ? new int[newSize] : Arrays.copyOf(nextFree, newSize);
+            prevFree = prevFree == null ? new int[newSize] : Arrays.copyOf(prevFree, newSize);
+            trials = trials == null ? new byte[newSize] : Arrays.copyOf(trials, newSize);
+            for (int i = Math.max(allocSize, 1); i < newSize; ++i){
+                link(i, OPEN);
+            }
+            if (positionLinks != null){
+                // the failure function is built along with the double array
+                fail = fail == null ? new int[newSize] : Arrays.copyOf(fail, newSize);
+                positionLinks = Arrays.copyOf(positionLinks, newSize);
+            }
             allocSize = newSize;
             
             return allocSize;
         }
 
         /**
-         * insert the siblings to double array trie
-         *
-         * @param firstSiblings the initial siblings being inserted
+         * append a code to the siblings being inserted
          */
-        private void insert(List<Map.Entry<Integer, State>> firstSiblings){
-            Queue<Map.Entry<Integer, List<Map.Entry<Integer, State>>>> siblingQueue = new ArrayDeque<>();
-            siblingQueue.add(new AbstractMap.SimpleEntry<Integer, List<Map.Entry<Integer, State>>>(null, firstSiblings));
-
-            while (!siblingQueue.isEmpty()){
-                insert(siblingQueue);
+        private void addSibling(int code){
+            if (siblingCount == siblingCodes.length){
+                siblingCodes = Arrays.copyOf(siblingCodes, siblingCount * 2);
             }
+            siblingCodes[siblingCount++] = code;
         }
 
         /**
          * insert the siblings to double array trie
          *
-         * @param siblingQueue a queue holding all siblings being inserted and the position to insert them
+         * @param root the root node, whose children are the initial siblings being inserted
          */
-        private void insert(Queue<Map.Entry<Integer, List<Map.Entry<Integer, State>>>> siblingQueue){
-            Map.Entry<Integer, List<Map.Entry<Integer, State>>> tCurrent = siblingQueue.remove();
-            List<Map.Entry<Integer, State>> siblings = tCurrent.getValue();
+        private void insert(State root){
+            Queue<State> parentQueue = new ArrayDeque<>();
+            parentQueue.add(root);
 
-            int begin = 0;
-            int pos = Math.max(siblings.get(0).getKey() + 1, nextCheckPos) - 1;
-            int nonZeroNum = 0;
-            int first = 0;
-
-            if (allocSize <= pos)
-                resize(pos + 1);
-            
-            begin = newinsert(pos, nonZeroNum, first, begin, siblings);
-
-            used[begin] = true;
-
-            size = (size > begin + siblings.get(siblings.size() - 1).getKey() + 1) ? size : begin + siblings.get(siblings.size() - 1).getKey() + 1;
-
-            for (Map.Entry<Integer, State> sibling : siblings){
-                check[begin + sibling.getKey()] = begin;
+            while (!parentQueue.isEmpty()){
+                insert(parentQueue);
             }
+        }
 
-            for (Map.Entry<Integer, State> sibling : siblings){
-                List<Map.Entry<Integer, State>> newSiblings = new ArrayList<>(sibling.getValue().getSuccess().entrySet().size() + 1);
+        /**
+         * insert the children of a parent node to double array trie
+         *
+         * @param parentQueue a queue holding the parent nodes whose children are being inserted, the index of a
+         *                    parent node is its position
+         */
+        private void insert(Queue<State> parentQueue){
+            State parent = parentQueue.remove();
+            siblingCount = 0;
+            if (parent.isAcceptable()){
+                addSibling(0);
+            }
+            for (int i = 0; i < parent.getChildCount(); ++i){
+                addSibling(code[parent.getChildLabel(i)]);
+            }
 
-                if (fetch(sibling.getValue(), newSiblings) == 0){
-                    base[begin + sibling.getKey()] = (-sibling.getValue().getLargestValueId() - 1);
-                    progress++;
-                }else{
-                    siblingQueue.add(new AbstractMap.SimpleEntry<>(begin + sibling.getKey(), newSiblings));
-                }
-                sibling.getValue().setIndex(begin + sibling.getKey());
+            int begin = place();
+            if (parent.isAcceptable()){
+                // the end of a keyword is a leaf holding the keyword id
+                base[begin] = -parent.getLargestValueId() - 1;
+            }
+            for (int i = 0; i < parent.getChildCount(); ++i){
+                State child = parent.getChild(i);
+                child.setIndex(begin + code[parent.getChildLabel(i)]);
+                parentQueue.add(child);
             }
 
             // Insert siblings
-            Integer parentBaseIndex = tCurrent.getKey();
-            if (parentBaseIndex != null){
-                base[parentBaseIndex] = begin;
+            if (parent != rootState){
+                base[parent.getIndex()] = begin;
             }
         }
-        
-        private int newinsert(int pos, int nonZeroNum, int first, int begin, List<Map.Entry<Integer, State>> siblings) {
-        	int goagain = 0;
-            while (true)
-            {
-                pos++;
 
-                pos = checkPos(allocSize, pos);
+        /**
+         * insert sorted keys to double array trie, level by level in the same order as {@link #insert(State)}
+         *
+         * @param keys keys in strictly ascending order
+         */
+        private void insert(String[] keys){
+            // every entry is a parent position, the range [lo, hi) of keys below it and its depth
+            Queue<int[]> rangeQueue = new ArrayDeque<>();
+            rangeQueue.add(new int[]{0, 0, keys.length, 0});
+            int[] bounds = new int[16];
+            while (!rangeQueue.isEmpty()){
+                int[] range = rangeQueue.remove();
+                int parent = range[0];
+                int depth = range[3];
+                int i = range[1];
+                int hi = range[2];
+                siblingCount = 0;
+                int keyword = -1;
+                if (keys[i].length() == depth){
+                    if (depth > 0){
+                        keyword = i;
+                        addSibling(0);
+                    }
+                    ++i;
+                }
+                int childCount = 0;
+                while (i < hi){
+                    char c = keys[i].charAt(depth);
+                    if (childCount + 1 >= bounds.length){
+                        bounds = Arrays.copyOf(bounds, bounds.length * 2);
+                    }
+                    bounds[childCount++] = i;
+                    while (i < hi && keys[i].charAt(depth) == c){
+                        ++i;
+                    }
+                    addSibling(code[c]);
+                }
+                bounds[childCount] = hi;
+                if (siblingCount == 0) continue;
 
-                if (check[pos] != 0)
-                {
-                	nonZeroNum++;
-                    continue;
+                if (parent != 0){
+                    // the failure state of the parent is shallower, so its accepting status is already known
+                    int failure = fail[parent];
+                    positionLinks[parent] = keywordAt(failure) >= 0 ? failure : positionLinks[failure];
                 }
-                else if (first == 0)
-                {
-                    nextCheckPos = pos;
-                    first = 1;
+                int begin = place();
+                if (keyword >= 0){
+                    base[begin] = -keyword - 1;
                 }
+                for (int k = 0; k < childCount; ++k){
+                    char c = keys[bounds[k]].charAt(depth);
+                    int child = begin + code[c];
+                    fail[child] = parent == 0 ? 0 : failureOf(fail[parent], c);
+                    rangeQueue.add(new int[]{child, bounds[k], bounds[k + 1], depth + 1});
+                }
+                if (parent != 0){
+                    base[parent] = begin;
+                }
+            }
+        }
 
-                begin = pos - siblings.get(0).getKey();
-                if (allocSize <= (begin + siblings.get(siblings.size() - 1).getKey()))
-                {
-                    // progress can be zero
-                    double l1 = (1.05 > 1.0 * keySize / (progress + 1)) ? 1.05 : 1.0 * keySize / (progress + 1);
-                    resize((int) (allocSize * l1));
+        /**
+         * goto function on the double array being built, following the failure function on mismatch
+         */
+        private int failureOf(int state, char c){
+            while (true){
+                int b = base[state];
+                int p = b + code[c];
+                if (p < allocSize && check[p] == b){
+                    return p;
                 }
+                if (state == 0) return 0;
+                state = fail[state];
+            }
+        }
 
-                if (used[begin])
-                    continue;
+        /**
+         * find a position for the siblings being inserted and claim it
+         *
+         * @return the begin of the siblings
+         */
+        private int place(){
+            // the codes follow the frequency of the characters rather than the order of the labels
+            Arrays.sort(siblingCodes, 0, siblingCount);
+            int lastCode = siblingCodes[siblingCount - 1];
 
-                for (int i = 1; i < siblings.size(); i++)
-                    if (check[begin + siblings.get(i).getKey()] != 0) {
-                    	goagain = 1;
-                    	break;
-                    }
-                if(goagain == 1) {
-                	continue;
+            int begin = newinsert();
+
+            used[begin] = true;
+
+            size = (size > begin + lastCode + 1) ? size : begin + lastCode + 1;
+
+            for (int i = 0; i < siblingCount; ++i){
+                check[begin + siblingCodes[i]] = begin;
+                claim(begin + siblingCodes[i]);
+            }
+            return begin;
+        }
+
+        /**
+         * find the begin of the siblings being inserted, visiting only the empty positions
+         *
+         * @return the begin
+         */
+        private int newinsert() {
+            int firstCode = siblingCodes[0];
+            int lastCode = siblingCodes[siblingCount - 1];
+            // try the holes the open list gave up on first, rotating the ones which do not fit to the end
+            for (int visit = 0; visit < MAX_CLOSED_VISIT && firstFree[CLOSED] != -1; ++visit){
+                int pos = firstFree[CLOSED];
+                int begin = pos - firstCode;
+                if (begin > 0 && begin + lastCode < allocSize && !used[begin] && isVacant(begin))
+                    return begin;
+                if (pos == lastFree[CLOSED]) break;
+                unlink(pos, CLOSED);
+                link(pos, CLOSED);
+            }
+            int pos = firstFreeFrom(Math.max(firstCode + 1, nextCheckPos));
+            nextCheckPos = pos;
+            int freeNum = 0;
+            int begin;
+            while (true)
+            {
+                ++freeNum;
+                begin = pos - firstCode;
+                if (allocSize <= (begin + lastCode))
+                    grow(begin + lastCode + 1);
+
+                if (!used[begin] && isVacant(begin))
+                    break;
+
+                if (nextFree[pos] == -1)
+                    grow(allocSize + 1);
+                int next = nextFree[pos];
+                if (++trials[pos] == MAX_TRIAL){
+                    unlink(pos, OPEN);
+                    link(pos, CLOSED);
                 }
-                break;
+                pos = next;
             }
 
             // -- Simple heuristics --
@@ -595,31 +2356,154 @@ public class AhoCorasickDoubleArrayTrie<V> implements Serializable{
             // 'next_check_pos' and 'check' is greater than some constant value
             // (e.g. 0.9),
             // new 'next_check_pos' index is written by 'check'.
+            int nonZeroNum = pos - nextCheckPos + 1 - freeNum;
             if (1.0 * nonZeroNum / (pos - nextCheckPos + 1) >= 0.95)
                 nextCheckPos = pos;
             return begin;
         }
-        
+
         /**
-         * Check if allocated size is less or equal to position
-         * */
-        private int checkPos(int allocSize, int pos) {
-        	if (allocSize <= pos)
-                resize(pos + 1);
-        	return pos;
+         * Check whether all the siblings being inserted fit at begin
+         */
+        private boolean isVacant(int begin){
+            for (int i = 1; i < siblingCount; i++)
+                if (check[begin + siblingCodes[i]] != 0)
+                    return false;
+            return true;
         }
 
         /**
-         * free the unnecessary memory
+         * @param pos a position
+         * @return the first position of the open list not less than pos
          */
-        private void loseWeight(){
-            int[] nbase = new int[size + 65535];
-            System.arraycopy(base, 0, nbase, 0, size);
-            base = nbase;
+        private int firstFreeFrom(int pos){
+            while (true){
+                if (allocSize <= pos)
+                    grow(pos + 1);
+                if (pos != 0 && check[pos] == 0 && trials[pos] < MAX_TRIAL)
+                    return pos;
+                if (pos < firstFree[OPEN])
+                    pos = firstFree[OPEN];
+                else
+                    ++pos;
+            }
+        }
+
+        /**
+         * grow the dynamic array geometrically, so that it is copied only a logarithmic number of times
+         *
+         * @param minSize the size needed at least
+         */
+        private void grow(int minSize){
+            resize((int) Math.min(Integer.MAX_VALUE - 8, Math.max(minSize, allocSize + (allocSize >> 1) + 16L)));
+        }
+
+        /**
+         * remove a position from the free lists as it is taken
+         */
+        private void claim(int pos){
+            unlink(pos, trials[pos] < MAX_TRIAL ? OPEN : CLOSED);
+        }
+
+        private void link(int pos, int list){
+            int last = lastFree[list];
+            prevFree[pos] = last;
+            nextFree[pos] = -1;
+            if (last == -1){
+                firstFree[list] = pos;
+            }else{
+                nextFree[last] = pos;
+            }
+            lastFree[list] = pos;
+        }
+
+        private void unlink(int pos, int list){
+            int prev = prevFree[pos];
+            int next = nextFree[pos];
+            if (prev == -1){
+                firstFree[list] = next;
+            }else{
+                nextFree[prev] = next;
+            }
+            if (next == -1){
+                lastFree[list] = prev;
+            }else{
+                prevFree[next] = prev;
+            }
+        }
+
+        /**
+         * @return the length of the longest key
+         */
+        private int maxLength(){
+            int max = 0;
+            for (int length : l){
+                max = Math.max(max, length);
+            }
+            return max;
+        }
+
+        /**
+         * resolve every transition of the root into {@link #rootNext}
+         */
+        private void constructRootNext(){
+            rootNext = new int[alphabetSize + 2];
+            for (int c = 1; c < rootNext.length; ++c){
+                int p = base[0] + c;
+                if (p < check.length && check[p] == base[0]){
+                    rootNext[c] = p;
+                }
+            }
+        }
+
+        /**
+         * construct the complete transition table, row by row in breadth first order, so that the row of the
+         * failure state is always ready to be copied from
+         */
+        private void constructDfa(){
+            int width = alphabetSize + 2;
+            int[] order = new int[Math.max(size, 1)];
+            int count = 1;
+            for (int head = 0; head < count; ++head){
+                int b = base[order[head]];
+                for (int c = 1; c < width; ++c){
+                    int p = b + c;
+                    if (p < size && check[p] == b){
+                        order[count++] = p;
+                    }
+                }
+            }
+            if ((long) count * width > Integer.MAX_VALUE - 8){
+                throw new IllegalArgumentException("A transition table of " + count + " states by " + width + " codes is too large");
+            }
+            dfaRow = new int[Math.max(size, 1)];
+            dfaNext = new int[count * width];
+            for (int head = 0; head < count; ++head){
+                int state = order[head];
+                int row = head * width;
+                dfaRow[state] = row;
+                int b = base[state];
+                int failureRow = dfaRow[fail[state]];
+                for (int c = 1; c < width; ++c){
+                    int p = b + c;
+                    if (p < size && check[p] == b){
+                        dfaNext[row + c] = p;
+                    }else if (state != 0){
+                        dfaNext[row + c] = dfaNext[failureRow + c];
+                    }
+                }
+            }
+        }
 
-            int[] ncheck = new int[size + 65535];
-            System.arraycopy(check, 0, ncheck, 0, size);
-            check = ncheck;
+        /**
+         * free the unnecessary memory, the transitions check the bounds so nothing past the last state is kept
+         */
+        private void loseWeight(){
+            int length = Math.max(size, 1);
+            if (length != base.length){
+                base = Arrays.copyOf(base, length);
+                check = Arrays.copyOf(check, length);
+            }
         }
     }
 }
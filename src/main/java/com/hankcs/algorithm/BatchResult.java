@@ -0,0 +1,120 @@
+/*
+ * AhoCorasickDoubleArrayTrie Project
+ *      https://github.com/hankcs/AhoCorasickDoubleArrayTrie
+ *
+ * Copyright 2008-2016 hankcs <me@hankcs.com>
+ * You may modify and redistribute as long as this attribution remains.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hankcs.algorithm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.hankcs.algorithm.AhoCorasickDoubleArrayTrie.Hit;
+
+/**
+ * The hits of a batch of documents scanned by {@link AhoCorasickDoubleArrayTrie#parseTexts(List, java.util.concurrent.ForkJoinPool)},
+ * stored column by column in primitive arrays. The hits of document d are the hits numbered from
+ * {@link #firstHit(int) firstHit(d)} to {@code firstHit(d + 1) - 1}, in the order {@link AhoCorasickDoubleArrayTrie#parseText(CharSequence)}
+ * reports them.
+ *
+ * @author hankcs
+ */
+public class BatchResult<V>{
+    private final int[] documentOffsets;
+    private final HitBuffer hits;
+    private final V[] values;
+
+    BatchResult(int[] documentOffsets, HitBuffer hits, V[] values){
+        this.documentOffsets = documentOffsets;
+        this.hits = hits;
+        this.values = values;
+    }
+
+    /**
+     * @return the amount of documents
+     */
+    public int documentCount(){
+        return documentOffsets.length - 1;
+    }
+
+    /**
+     * @return the amount of hits in all documents
+     */
+    public int hitCount(){
+        return documentOffsets[documentOffsets.length - 1];
+    }
+
+    /**
+     * @param document the rank of a document in the batch
+     * @return the amount of hits in the document
+     */
+    public int hitCount(int document){
+        return documentOffsets[document + 1] - documentOffsets[document];
+    }
+
+    /**
+     * @param document the rank of a document in the batch, or the amount of documents
+     * @return the number of the first hit of the document
+     */
+    public int firstHit(int document){
+        return documentOffsets[document];
+    }
+
+    /**
+     * @param hit the number of a hit
+     * @return the beginning index of the hit in its document, inclusive
+     */
+    public int begin(int hit){
+        return hits.begin(hit);
+    }
+
+    /**
+     * @param hit the number of a hit
+     * @return the ending index of the hit in its document, exclusive
+     */
+    public int end(int hit){
+        return hits.end(hit);
+    }
+
+    /**
+     * @param hit the number of a hit
+     * @return the index of the keyword, as passed to {@link AhoCorasickDoubleArrayTrie.IHitFull}
+     */
+    public int index(int hit){
+        return hits.index(hit);
+    }
+
+    /**
+     * @param hit the number of a hit
+     * @return the value assigned to the keyword
+     */
+    public V value(int hit){
+        return values[hits.index(hit)];
+    }
+
+    /**
+     * @param document the rank of a document in the batch
+     * @return the hits of the document as objects
+     */
+    public List<Hit<V>> hits(int document){
+        List<Hit<V>> list = new ArrayList<>(hitCount(document));
+        for (int hit = documentOffsets[document]; hit < documentOffsets[document + 1]; ++hit){
+            list.add(new Hit<>(begin(hit), end(hit), value(hit)));
+        }
+        return list;
+    }
+}
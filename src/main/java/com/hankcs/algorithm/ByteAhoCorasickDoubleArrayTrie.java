@@ -0,0 +1,264 @@
+/*
+ * AhoCorasickDoubleArrayTrie Project
+ *      https://github.com/hankcs/AhoCorasickDoubleArrayTrie
+ *
+ * Copyright 2008-2016 hankcs <me@hankcs.com>
+ * You may modify and redistribute as long as this attribution remains.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hankcs.algorithm;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.hankcs.algorithm.AhoCorasickDoubleArrayTrie.BuildOptions;
+import com.hankcs.algorithm.AhoCorasickDoubleArrayTrie.Folding;
+import com.hankcs.algorithm.AhoCorasickDoubleArrayTrie.Hit;
+import com.hankcs.algorithm.AhoCorasickDoubleArrayTrie.IHit;
+import com.hankcs.algorithm.AhoCorasickDoubleArrayTrie.IHitCancellable;
+
+/**
+ * An Aho Corasick automaton over the UTF-8 encoding of the keywords, scanning raw bytes without decoding them.
+ * Hits are reported as byte offsets. The automaton is an {@link AhoCorasickDoubleArrayTrie} whose alphabet is the
+ * 256 byte values, which keeps base and check dense whatever the script of the keywords.
+ * <p>
+ * Since every keyword is valid UTF-8, a hit always starts and ends on a character boundary of well-formed input.
+ * </p>
+ *
+ * @author hankcs
+ */
+public class ByteAhoCorasickDoubleArrayTrie<V> implements Serializable{
+    private static final long serialVersionUID = 4227410379531585047L;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * the automaton over the bytes, every byte b being the char b &amp; 0xFF
+     */
+    private final AhoCorasickDoubleArrayTrie<V> trie = new AhoCorasickDoubleArrayTrie<>();
+
+    /**
+     * Build from a map
+     *
+     * @param map a map containing key-value pairs
+     */
+    public void build(Map<String, V> map){
+        build(map, new BuildOptions());
+    }
+
+    /**
+     * Build from a map
+     *
+     * @param map     a map containing key-value pairs, the keys are encoded in UTF-8
+     * @param options the layout of the automaton, the only folding allowed is {@link Folding#ASCII_CASE}: the
+     *                bytes of ASCII letters never occur inside a multi-byte character, the other foldings would
+     *                apply to the bytes of characters
+     * @throws IllegalArgumentException if another folding is given, or if two keys have the same UTF-8 bytes, as
+     *                                  an unpaired surrogate is encoded as '?'
+     */
+    public void build(Map<String, V> map, BuildOptions options){
+        for (Folding folding : options.foldings()){
+            if (folding != Folding.ASCII_CASE){
+                throw new IllegalArgumentException("Cannot fold UTF-8 bytes with " + folding + ", only ASCII_CASE");
+            }
+        }
+        // keep the order of the map, so that the index of a value is the same as in a char based automaton
+        Map<String, V> byteMap = new LinkedHashMap<>(map.size() * 4 / 3 + 1);
+        for (Map.Entry<String, V> entry : map.entrySet()){
+            String bytes = toByteString(entry.getKey().getBytes(UTF_8));
+            if (byteMap.containsKey(bytes)){
+                throw new IllegalArgumentException("The key " + entry.getKey() + " has the same UTF-8 bytes as another key");
+            }
+            byteMap.put(bytes, entry.getValue());
+        }
+        trie.build(byteMap, options);
+    }
+
+    private static String toByteString(byte[] bytes){
+        char[] chars = new char[bytes.length];
+        for (int i = 0; i < bytes.length; ++i){
+            chars[i] = (char) (bytes[i] & 0xFF);
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Parse bytes
+     *
+     * @param text the UTF-8 bytes
+     * @return a list of outputs, with offsets in bytes
+     */
+    public List<Hit<V>> parseText(byte[] text){
+        final List<Hit<V>> collectedEmits = new ArrayList<>();
+        parseText(text, 0, text.length, new IHit<V>(){
+            @Override
+            public void hit(int begin, int end, V value){
+                collectedEmits.add(new Hit<>(begin, end, value));
+            }
+        });
+        return collectedEmits;
+    }
+
+    /**
+     * Parse a range of bytes
+     *
+     * @param text      the UTF-8 bytes
+     * @param offset    the first byte to scan
+     * @param length    the amount of bytes to scan
+     * @param processor A processor which handles the output, the offsets are indices into text
+     */
+    public void parseText(byte[] text, int offset, int length, IHit<V> processor){
+        int[] outputOffsets = trie.outputOffsets;
+        int[] outputIds = trie.outputIds;
+        int currentState = 0;
+        for (int i = offset, limit = offset + length; i < limit; ++i){
+            final int position = i + 1;
+            currentState = trie.getState(currentState, (char) (text[i] & 0xFF));
+            for (int j = outputOffsets[currentState], end = outputOffsets[currentState + 1]; j < end; ++j){
+                int hit = outputIds[j];
+                if (hit < 0){
+                    j = outputOffsets[-hit - 1] - 1;
+                    end = outputOffsets[-hit];
+                    continue;
+                }
+                processor.hit(position - trie.l[hit], position, trie.v[hit]);
+            }
+        }
+    }
+
+    /**
+     * Parse the remaining bytes of a buffer, heap or direct. The position of the buffer is left unchanged.
+     *
+     * @param text      the UTF-8 bytes between the position and the limit of the buffer
+     * @param processor A processor which handles the output, the offsets are indices into the buffer as
+     *                  taken by {@link ByteBuffer#get(int)}
+     */
+    public void parseText(ByteBuffer text, IHit<V> processor){
+        if (text.hasArray()){
+            parseText(text.array(), text.arrayOffset() + text.position(), text.remaining(), new OffsetHit<>(processor, text.arrayOffset()));
+            return;
+        }
+        int[] outputOffsets = trie.outputOffsets;
+        int[] outputIds = trie.outputIds;
+        int currentState = 0;
+        for (int i = text.position(), limit = text.limit(); i < limit; ++i){
+            final int position = i + 1;
+            currentState = trie.getState(currentState, (char) (text.get(i) & 0xFF));
+            for (int j = outputOffsets[currentState], end = outputOffsets[currentState + 1]; j < end; ++j){
+                int hit = outputIds[j];
+                if (hit < 0){
+                    j = outputOffsets[-hit - 1] - 1;
+                    end = outputOffsets[-hit];
+                    continue;
+                }
+                processor.hit(position - trie.l[hit], position, trie.v[hit]);
+            }
+        }
+    }
+
+    /**
+     * Parse bytes
+     *
+     * @param text      the UTF-8 bytes
+     * @param processor A processor which handles the output, it may stop the scan
+     */
+    public void parseText(byte[] text, IHitCancellable<V> processor){
+        int[] outputOffsets = trie.outputOffsets;
+        int[] outputIds = trie.outputIds;
+        int currentState = 0;
+        for (int i = 0; i < text.length; ++i){
+            final int position = i + 1;
+            currentState = trie.getState(currentState, (char) (text[i] & 0xFF));
+            for (int j = outputOffsets[currentState], end = outputOffsets[currentState + 1]; j < end; ++j){
+                int hit = outputIds[j];
+                if (hit < 0){
+                    j = outputOffsets[-hit - 1] - 1;
+                    end = outputOffsets[-hit];
+                    continue;
+                }
+                if (!processor.hit(position - trie.l[hit], position, trie.v[hit])){
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that the bytes contain at least one keyword
+     *
+     * @param text the UTF-8 bytes
+     * @return {@code true} if the bytes contain at least one keyword
+     */
+    public boolean matches(byte[] text){
+        int currentState = 0;
+        for (byte b : text){
+            currentState = trie.getState(currentState, (char) (b & 0xFF));
+            if (trie.outputOffsets[currentState] != trie.outputOffsets[currentState + 1]){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Search the first keyword in the bytes
+     *
+     * @param text the UTF-8 bytes
+     * @return first match, with offsets in bytes, or {@code null} if there are no matches
+     */
+    public Hit<V> findFirst(byte[] text){
+        int currentState = 0;
+        for (int i = 0; i < text.length; ++i){
+            currentState = trie.getState(currentState, (char) (text[i] & 0xFF));
+            int offset = trie.outputOffsets[currentState];
+            if (offset != trie.outputOffsets[currentState + 1]){
+                int hit = trie.outputIds[offset];
+                if (hit < 0) hit = trie.outputIds[trie.outputOffsets[-hit - 1]];
+                return new Hit<>(i + 1 - trie.l[hit], i + 1, trie.v[hit]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the size of the keywords
+     */
+    public int size(){
+        return trie.size();
+    }
+
+    /**
+     * shifts the offsets into the backing array of a heap buffer back to indices into the buffer
+     */
+    private static class OffsetHit<V> implements IHit<V>{
+        private final IHit<V> processor;
+        private final int arrayOffset;
+
+        OffsetHit(IHit<V> processor, int arrayOffset){
+            this.processor = processor;
+            this.arrayOffset = arrayOffset;
+        }
+
+        @Override
+        public void hit(int begin, int end, V value){
+            processor.hit(begin - arrayOffset, end - arrayOffset, value);
+        }
+    }
+}
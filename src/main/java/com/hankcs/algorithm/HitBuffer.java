@@ -0,0 +1,145 @@
+/*
+ * AhoCorasickDoubleArrayTrie Project
+ *      https://github.com/hankcs/AhoCorasickDoubleArrayTrie
+ *
+ * Copyright 2008-2016 hankcs <me@hankcs.com>
+ * You may modify and redistribute as long as this attribution remains.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hankcs.algorithm;
+
+import java.util.Arrays;
+
+/**
+ * A reusable, growable list of hits stored in parallel int arrays: the beginning, the end and the index of the
+ * keyword of every hit. Filling it allocates nothing once it has grown to the size of the results, the values are
+ * looked up on demand with {@link AhoCorasickDoubleArrayTrie#get(int)}.
+ * <p>
+ * Typical use is one buffer per thread, cleared before every document.
+ * </p>
+ *
+ * @author hankcs
+ */
+public class HitBuffer{
+    private int[] begins;
+    private int[] ends;
+    private int[] indices;
+    private int size;
+
+    public HitBuffer(){
+        this(16);
+    }
+
+    /**
+     * @param capacity the amount of hits it holds before growing
+     */
+    public HitBuffer(int capacity){
+        begins = new int[capacity];
+        ends = new int[capacity];
+        indices = new int[capacity];
+    }
+
+    /**
+     * Append a hit
+     *
+     * @param begin the beginning index, inclusive.
+     * @param end   the ending index, exclusive.
+     * @param index the index of the keyword
+     */
+    public void add(int begin, int end, int index){
+        if (size == begins.length){
+            ensureCapacity(size + 1);
+        }
+        begins[size] = begin;
+        ends[size] = end;
+        indices[size] = index;
+        ++size;
+    }
+
+    /**
+     * Append all hits of another buffer
+     *
+     * @param hits the hits to append
+     */
+    public void addAll(HitBuffer hits){
+        ensureCapacity(size + hits.size);
+        System.arraycopy(hits.begins, 0, begins, size, hits.size);
+        System.arraycopy(hits.ends, 0, ends, size, hits.size);
+        System.arraycopy(hits.indices, 0, indices, size, hits.size);
+        size += hits.size;
+    }
+
+    /**
+     * Make room for a total amount of hits
+     *
+     * @param capacity the amount of hits to hold without growing
+     */
+    public void ensureCapacity(int capacity){
+        if (capacity > begins.length){
+            capacity = Math.max(capacity, begins.length + (begins.length >> 1) + 16);
+            begins = Arrays.copyOf(begins, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            indices = Arrays.copyOf(indices, capacity);
+        }
+    }
+
+    /**
+     * Remove all hits, keeping the memory
+     */
+    public void clear(){
+        size = 0;
+    }
+
+    /**
+     * @return the amount of hits
+     */
+    public int size(){
+        return size;
+    }
+
+    /**
+     * @param hit the number of a hit
+     * @return the beginning index of the hit, inclusive
+     */
+    public int begin(int hit){
+        return begins[hit];
+    }
+
+    /**
+     * @param hit the number of a hit
+     * @return the ending index of the hit, exclusive
+     */
+    public int end(int hit){
+        return ends[hit];
+    }
+
+    /**
+     * @param hit the number of a hit
+     * @return the index of the keyword
+     */
+    public int index(int hit){
+        return indices[hit];
+    }
+
+    @Override
+    public String toString(){
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < size; ++i){
+            if (i > 0) sb.append(", ");
+            sb.append('[').append(begins[i]).append(':').append(ends[i]).append("]=#").append(indices[i]);
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * AhoCorasickDoubleArrayTrie Project
+ *      https://github.com/hankcs/AhoCorasickDoubleArrayTrie
+ *
+ * Copyright 2008-2016 hankcs <me@hankcs.com>
+ * You may modify and redistribute as long as this attribution remains.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hankcs.algorithm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.hankcs.algorithm.AhoCorasickDoubleArrayTrie.Hit;
+import com.hankcs.algorithm.AhoCorasickDoubleArrayTrie.IHit;
+import com.hankcs.algorithm.AhoCorasickDoubleArrayTrie.IHitCancellable;
+
+/**
+ * A read-only Aho Corasick automaton scanning directly over a memory-mapped file written by
+ * {@link AhoCorasickDoubleArrayTrie#save(java.io.DataOutputStream)}. Loading only validates the header, the
+ * arrays stay in the page cache and are shared by every process mapping the same file.
+ * <p>
+ * The file is big-endian: the ints magic, version and size, the code table of the characters as chars padded to
+ * a multiple of 4 bytes, then the int arrays base, check, fail, output offsets, output ids and key lengths. Every
+ * array is prefixed with its length. A negative output id -(s + 1) is an output link: the emits continue with
+ * those of state s.
+ * </p>
+ *
+ * @author hankcs
+ */
+public class MappedAhoCorasickDoubleArrayTrie<V>{
+    /**
+     * "ACDT"
+     */
+    static final int MAGIC = 0x41434454;
+    /**
+     * version of the binary format
+     */
+    static final int VERSION = 2;
+
+    private final CharBuffer code;
+    private final IntBuffer base;
+    private final IntBuffer check;
+    private final IntBuffer fail;
+    private final IntBuffer outputOffsets;
+    private final IntBuffer outputIds;
+    private final IntBuffer l;
+    private final V[] v;
+    /**
+     * the transitions of the root indexed by code, resolved on the heap when loading
+     */
+    private final int[] rootNext;
+
+    private MappedAhoCorasickDoubleArrayTrie(ByteBuffer buffer, V[] values) throws IOException{
+        if (buffer.getInt(0) != MAGIC){
+            throw new IOException("Not an AhoCorasickDoubleArrayTrie binary file");
+        }
+        int version = buffer.getInt(4);
+        if (version != VERSION){
+            throw new IOException("Unsupported binary format version " + version + ", expected " + VERSION);
+        }
+        int position = 12;
+        code = slice(buffer, position, 2).asCharBuffer();
+        if (code.capacity() == 0){
+            throw new IOException("Empty code table in AhoCorasickDoubleArrayTrie binary file");
+        }
+        position += 4 + (code.capacity() + 1) / 2 * 4;
+        base = slice(buffer, position);
+        position += 4 + base.capacity() * 4;
+        check = slice(buffer, position);
+        position += 4 + check.capacity() * 4;
+        fail = slice(buffer, position);
+        position += 4 + fail.capacity() * 4;
+        outputOffsets = slice(buffer, position);
+        position += 4 + outputOffsets.capacity() * 4;
+        outputIds = slice(buffer, position);
+        position += 4 + outputIds.capacity() * 4;
+        l = slice(buffer, position);
+        if (values != null && values.length != l.capacity()){
+            throw new IllegalArgumentException("Expected " + l.capacity() + " values, got " + values.length);
+        }
+        this.v = values;
+        int alphabetEnd = 0;
+        for (int c = 0; c < code.capacity(); ++c){
+            alphabetEnd = Math.max(alphabetEnd, code.get(c) + 1);
+        }
+        rootNext = new int[alphabetEnd];
+        int rootBase = base.capacity() == 0 ? 0 : base.get(0);
+        for (int c = 1; c < alphabetEnd; ++c){
+            int p = rootBase + c;
+            if (p < check.capacity() && check.get(p) == rootBase){
+                rootNext[c] = p;
+            }
+        }
+    }
+
+    /**
+     * Map a binary automaton file into memory
+     *
+     * @param file   a file written by {@link AhoCorasickDoubleArrayTrie#save(File)}
+     * @param values the values in the order of the map the automaton was built from, or {@code null} to report
+     *               {@code null} values
+     * @param <V>    the value type
+     * @return the mapped automaton
+     * @throws IOException if the file cannot be mapped or is not in the expected format
+     */
+    public static <V> MappedAhoCorasickDoubleArrayTrie<V> load(File file, V[] values) throws IOException{
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try{
+            FileChannel channel = raf.getChannel();
+            // the mapping stays valid after the channel is closed
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new MappedAhoCorasickDoubleArrayTrie<>(buffer, values);
+        }finally{
+            raf.close();
+        }
+    }
+
+    private static IntBuffer slice(ByteBuffer buffer, int position) throws IOException{
+        return slice(buffer, position, 4).asIntBuffer();
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int position, int elementSize) throws IOException{
+        if (position + 4 > buffer.limit()){
+            throw new IOException("Truncated AhoCorasickDoubleArrayTrie binary file");
+        }
+        int length = buffer.getInt(position);
+        if (length < 0 || position + 4 + (long) length * elementSize > buffer.limit()){
+            throw new IOException("Truncated AhoCorasickDoubleArrayTrie binary file");
+        }
+        ByteBuffer duplicate = buffer.duplicate();
+        ((Buffer) duplicate).position(position + 4);
+        ((Buffer) duplicate).limit(position + 4 + length * elementSize);
+        return duplicate.slice();
+    }
+
+    /**
+     * Parse text
+     *
+     * @param text The text
+     * @return a list of outputs
+     */
+    public List<Hit<V>> parseText(CharSequence text){
+        List<Hit<V>> collectedEmits = new ArrayList<>();
+        int currentState = 0;
+        for (int i = 0; i < text.length(); ++i){
+            final int position = i + 1;
+            currentState = getState(currentState, text.charAt(i));
+            for (int j = outputOffsets.get(currentState), end = outputOffsets.get(currentState + 1); j < end; ++j){
+                int hit = outputIds.get(j);
+                if (hit < 0){
+                    j = outputOffsets.get(-hit - 1) - 1;
+                    end = outputOffsets.get(-hit);
+                    continue;
+                }
+                collectedEmits.add(new Hit<>(position - l.get(hit), position, value(hit)));
+            }
+        }
+        return collectedEmits;
+    }
+
+    /**
+     * Parse text
+     *
+     * @param text      The text
+     * @param processor A processor which handles the output
+     */
+    @SuppressWarnings("overloads")
+    public void parseText(CharSequence text, IHit<V> processor){
+        int currentState = 0;
+        for (int i = 0; i < text.length(); ++i){
+            final int position = i + 1;
+            currentState = getState(currentState, text.charAt(i));
+            for (int j = outputOffsets.get(currentState), end = outputOffsets.get(currentState + 1); j < end; ++j){
+                int hit = outputIds.get(j);
+                if (hit < 0){
+                    j = outputOffsets.get(-hit - 1) - 1;
+                    end = outputOffsets.get(-hit);
+                    continue;
+                }
+                processor.hit(position - l.get(hit), position, value(hit));
+            }
+        }
+    }
+
+    /**
+     * Parse text
+     *
+     * @param text      The text
+     * @param processor A processor which handles the output
+     */
+    @SuppressWarnings("overloads")
+    public void parseText(CharSequence text, IHitCancellable<V> processor){
+        int currentState = 0;
+        for (int i = 0; i < text.length(); ++i){
+            final int position = i + 1;
+            currentState = getState(currentState, text.charAt(i));
+            for (int j = outputOffsets.get(currentState), end = outputOffsets.get(currentState + 1); j < end; ++j){
+                int hit = outputIds.get(j);
+                if (hit < 0){
+                    j = outputOffsets.get(-hit - 1) - 1;
+                    end = outputOffsets.get(-hit);
+                    continue;
+                }
+                if (!processor.hit(position - l.get(hit), position, value(hit))){
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that string contains at least one substring
+     *
+     * @param text source text to check
+     * @return {@code true} if string contains at least one substring
+     */
+    public boolean matches(String text){
+        int currentState = 0;
+        for (int i = 0; i < text.length(); ++i){
+            currentState = getState(currentState, text.charAt(i));
+            if (outputOffsets.get(currentState) != outputOffsets.get(currentState + 1)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Search first match in string
+     *
+     * @param text source text to check
+     * @return first match or {@code null} if there are no matches
+     */
+    public Hit<V> findFirst(String text){
+        int currentState = 0;
+        for (int i = 0; i < text.length(); ++i){
+            currentState = getState(currentState, text.charAt(i));
+            int offset = outputOffsets.get(currentState);
+            if (offset != outputOffsets.get(currentState + 1)){
+                int hit = outputIds.get(offset);
+                if (hit < 0) hit = outputIds.get(outputOffsets.get(-hit - 1));
+                return new Hit<>(i + 1 - l.get(hit), i + 1, value(hit));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the size of the keywords
+     */
+    public int size(){
+        return l.capacity();
+    }
+
+    private V value(int index){
+        return v == null ? null : v[index];
+    }
+
+    /**
+     * transmit state, supports failure function
+     */
+    private int getState(int currentState, char character){
+        int c = code.get(Math.min(character, code.capacity() - 1));
+        while (currentState != 0){
+            int b = base.get(currentState);
+            int p = b + c;
+            if (p < check.capacity() && b == check.get(p)){
+                return p;
+            }
+            currentState = fail.get(currentState);
+        }
+        return rootNext[c];
+    }
+}
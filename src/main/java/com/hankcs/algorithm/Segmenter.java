@@ -0,0 +1,224 @@
+/*
+ * AhoCorasickDoubleArrayTrie Project
+ *      https://github.com/hankcs/AhoCorasickDoubleArrayTrie
+ *
+ * Copyright 2008-2016 hankcs <me@hankcs.com>
+ * You may modify and redistribute as long as this attribution remains.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hankcs.algorithm;
+
+/**
+ * A dictionary segmenter built on an automaton: one scan finds every word of the text, then the tokens are
+ * chosen by maximum matching or by dynamic programming over primitive arrays indexed by the positions of the
+ * text. No hit is created per word of the lattice.
+ * <p>
+ * The tokens are appended to a {@link HitBuffer} in the order of the text and cover it entirely: a character
+ * which starts no chosen word is a token of its own, with the index -1. The segmenter keeps no state between
+ * calls, any number of threads may share it.
+ * </p>
+ *
+ * @author hankcs
+ */
+public class Segmenter<V>{
+    /**
+     * Gives the weight of a word
+     */
+    public interface IWeigher<V>{
+        /**
+         * @param value the value of the word
+         * @return its weight, e.g. the logarithm of its frequency
+         */
+        double weight(V value);
+    }
+
+    private final AhoCorasickDoubleArrayTrie<V> trie;
+    /**
+     * the weight of every keyword, null when segmenting by the amount of words only
+     */
+    private final double[] weights;
+    /**
+     * the weight of a character which starts no word
+     */
+    private final double unknownWeight;
+
+    /**
+     * A segmenter without weights, which supports maximum matching and {@link #minimumWords(CharSequence, HitBuffer)}
+     *
+     * @param trie the dictionary
+     */
+    public Segmenter(AhoCorasickDoubleArrayTrie<V> trie){
+        this.trie = trie;
+        this.weights = null;
+        this.unknownWeight = 0;
+    }
+
+    /**
+     * A segmenter weighing the words by their values, for {@link #maximumWeight(CharSequence, HitBuffer)}
+     *
+     * @param trie          the dictionary
+     * @param weigher       gives the weight of every word, called once per keyword when constructing
+     * @param unknownWeight the weight of a character which starts no word, usually below that of any word
+     */
+    public Segmenter(AhoCorasickDoubleArrayTrie<V> trie, IWeigher<V> weigher, double unknownWeight){
+        this.trie = trie;
+        this.weights = new double[trie.size()];
+        for (int i = 0; i < weights.length; ++i){
+            weights[i] = weigher.weight(trie.get(i));
+        }
+        this.unknownWeight = unknownWeight;
+    }
+
+    /**
+     * Forward maximum matching: from the beginning of the text, take the longest word beginning there
+     *
+     * @param text   the text
+     * @param tokens receives the tokens
+     */
+    public void forwardMaximumMatching(CharSequence text, HitBuffer tokens){
+        final int[] longest = new int[text.length()];
+        final int[] longestIndex = new int[text.length()];
+        trie.parseText(text, new AhoCorasickDoubleArrayTrie.IHitFull<V>(){
+            @Override
+            public void hit(int begin, int end, V value, int index){
+                if (end - begin > longest[begin]){
+                    longest[begin] = end - begin;
+                    longestIndex[begin] = index;
+                }
+            }
+        });
+        for (int i = 0; i < longest.length; ){
+            if (longest[i] == 0){
+                tokens.add(i, i + 1, -1);
+                ++i;
+            }else{
+                tokens.add(i, i + longest[i], longestIndex[i]);
+                i += longest[i];
+            }
+        }
+    }
+
+    /**
+     * Backward maximum matching: from the end of the text, take the longest word ending there
+     *
+     * @param text   the text
+     * @param tokens receives the tokens
+     */
+    public void backwardMaximumMatching(CharSequence text, HitBuffer tokens){
+        // the begin of the longest word ending at every position, the position itself if none
+        final int[] begins = new int[text.length() + 1];
+        final int[] indices = new int[text.length() + 1];
+        for (int e = 0; e < begins.length; ++e){
+            begins[e] = e;
+        }
+        trie.parseText(text, new AhoCorasickDoubleArrayTrie.IHitFull<V>(){
+            @Override
+            public void hit(int begin, int end, V value, int index){
+                if (begin < begins[end]){
+                    begins[end] = begin;
+                    indices[end] = index;
+                }
+            }
+        });
+        // link every chosen token to the one before it, then append them forward
+        for (int e = text.length(); e > 0; ){
+            if (begins[e] == e){
+                begins[e] = e - 1;
+                indices[e] = -1;
+            }
+            e = begins[e];
+        }
+        appendPath(begins, indices, text.length(), tokens);
+    }
+
+    /**
+     * Segment into the fewest tokens, preferring words to single characters of equal count
+     *
+     * @param text   the text
+     * @param tokens receives the tokens
+     */
+    public void minimumWords(CharSequence text, HitBuffer tokens){
+        segment(text, null, tokens);
+    }
+
+    /**
+     * Segment into the tokens of the highest total weight, the weights given when constructing
+     *
+     * @param text   the text
+     * @param tokens receives the tokens
+     */
+    public void maximumWeight(CharSequence text, HitBuffer tokens){
+        if (weights == null){
+            throw new IllegalStateException("This segmenter was constructed without weights");
+        }
+        segment(text, weights, tokens);
+    }
+
+    /**
+     * The best path over the lattice, relaxed while scanning: the hits ending at a position arrive after those
+     * ending before it, so the score of their beginning is final
+     *
+     * @param weights the weight of every keyword, or null to count the tokens
+     */
+    private void segment(CharSequence text, final double[] weights, HitBuffer tokens){
+        final int length = text.length();
+        final double[] score = new double[length + 1];
+        final int[] begins = new int[length + 1];
+        final int[] indices = new int[length + 1];
+        final double unknown = weights == null ? -1 : unknownWeight;
+        // the positions up to which a single character has been scored
+        final int[] scored = {0};
+        trie.parseText(text, new AhoCorasickDoubleArrayTrie.IHitFull<V>(){
+            @Override
+            public void hit(int begin, int end, V value, int index){
+                for (int e = scored[0] + 1; e <= end; ++e){
+                    score[e] = score[e - 1] + unknown;
+                    begins[e] = e - 1;
+                    indices[e] = -1;
+                }
+                scored[0] = Math.max(scored[0], end);
+                double candidate = score[begin] + (weights == null ? -1 : weights[index]);
+                if (candidate > score[end] || candidate == score[end] && indices[end] < 0){
+                    score[end] = candidate;
+                    begins[end] = begin;
+                    indices[end] = index;
+                }
+            }
+        });
+        for (int e = scored[0] + 1; e <= length; ++e){
+            begins[e] = e - 1;
+            indices[e] = -1;
+        }
+        appendPath(begins, indices, length, tokens);
+    }
+
+    /**
+     * Append the tokens of a path given backward: the token ending at e begins at begins[e]
+     */
+    private static void appendPath(int[] begins, int[] indices, int length, HitBuffer tokens){
+        int count = 0;
+        for (int e = length; e > 0; e = begins[e]){
+            ++count;
+        }
+        int[] ends = new int[count];
+        for (int e = length; e > 0; e = begins[e]){
+            ends[--count] = e;
+        }
+        tokens.ensureCapacity(tokens.size() + ends.length);
+        for (int end : ends){
+            tokens.add(begins[end], end, indices[end]);
+        }
+    }
+}
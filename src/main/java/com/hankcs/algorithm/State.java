@@ -46,12 +46,31 @@ public class State
 
     private State failure = null;
 
-    private Set<Integer> emits = null;
-    
-    private Map<Character, State> success = new TreeMap<>();
+    /**
+     * the keyword ids ending at this state, sorted in descending order
+     */
+    private int[] emits = null;
+
+    private int emitCount;
+
+    /**
+     * the labels of the child states, sorted in ascending order
+     */
+    private char[] labels = EMPTY_LABELS;
+
+    /**
+     * the child states, parallel to labels
+     */
+    private State[] children = EMPTY_CHILDREN;
+
+    private int childCount;
 
     private int index;
 
+    private static final char[] EMPTY_LABELS = new char[0];
+
+    private static final State[] EMPTY_CHILDREN = new State[0];
+
     public State(){
         this(0);
     }
@@ -66,14 +85,32 @@ public class State
 
     public void addEmit(int keyword){
         if (this.emits == null){
-            this.emits = new TreeSet<>(Collections.reverseOrder());
+            this.emits = new int[1];
+        }
+        // binary search in descending order
+        int low = 0;
+        int high = emitCount - 1;
+        while (low <= high){
+            int mid = (low + high) >>> 1;
+            if (emits[mid] > keyword){
+                low = mid + 1;
+            }else if (emits[mid] < keyword){
+                high = mid - 1;
+            }else{
+                return;
+            }
         }
-        this.emits.add(keyword);
+        if (emitCount == emits.length){
+            emits = Arrays.copyOf(emits, emitCount * 2);
+        }
+        System.arraycopy(emits, low, emits, low + 1, emitCount - low);
+        emits[low] = keyword;
+        ++emitCount;
     }
 
     public Integer getLargestValueId(){
-        if (emits == null || emits.isEmpty()) return null;
-        return emits.iterator().next();
+        if (emitCount == 0) return null;
+        return emits[0];
     }
 
     public void addEmit(Collection<Integer> emits){
@@ -82,8 +119,38 @@ public class State
         }
     }
 
+    /**
+     * Add all emits of another state
+     *
+     * @param state the state whose emits are added
+     */
+    public void addEmit(State state){
+        for (int i = 0; i < state.emitCount; ++i){
+            addEmit(state.emits[i]);
+        }
+    }
+
     public Collection<Integer> emit(){
-        return this.emits == null ? Collections.<Integer>emptyList() : this.emits;
+        List<Integer> emit = new ArrayList<>(emitCount);
+        for (int i = 0; i < emitCount; ++i){
+            emit.add(emits[i]);
+        }
+        return emit;
+    }
+
+    /**
+     * @return the number of keyword ids ending at this state
+     */
+    public int getEmitCount(){
+        return emitCount;
+    }
+
+    /**
+     * @param i the rank of the emit, 0 being the largest keyword id
+     * @return the keyword id
+     */
+    public int getEmit(int i){
+        return emits[i];
     }
 
     public boolean isAcceptable(){
@@ -99,14 +166,19 @@ public class State
         fail[index] = failState.index;
     }
 
+    private int indexOf(char character){
+        return Arrays.binarySearch(labels, 0, childCount, character);
+    }
+
     /**
      *
      * @param character       
      * @param ignoreRootState 
      * @return
      */
-    private State nextState(Character character, boolean ignoreRootState){
-        State nextState = this.success.get(character);
+    private State nextState(char character, boolean ignoreRootState){
+        int i = indexOf(character);
+        State nextState = i < 0 ? null : children[i];
         if (!ignoreRootState && nextState == null && this.depth == 0){
             nextState = this;
         }
@@ -114,28 +186,70 @@ public class State
     }
 
     public State nextState(Character character){
+        return nextState(character.charValue(), false);
+    }
+
+    public State nextState(char character){
         return nextState(character, false);
     }
 
     public State nextStateIgnoreRootState(Character character){
-        return nextState(character, true);
+        return nextState(character.charValue(), true);
     }
 
     public State addState(Character character){
-        State nextState = nextStateIgnoreRootState(character);
-        if (nextState == null){
-            nextState = new State(this.depth + 1);
-            this.success.put(character, nextState);
+        return addState(character.charValue());
+    }
+
+    public State addState(char character){
+        int i = indexOf(character);
+        if (i >= 0){
+            return children[i];
+        }
+        i = -i - 1;
+        if (childCount == labels.length){
+            int capacity = Math.max(2, childCount * 2);
+            labels = Arrays.copyOf(labels, capacity);
+            children = Arrays.copyOf(children, capacity);
         }
+        System.arraycopy(labels, i, labels, i + 1, childCount - i);
+        System.arraycopy(children, i, children, i + 1, childCount - i);
+        State nextState = new State(this.depth + 1);
+        labels[i] = character;
+        children[i] = nextState;
+        ++childCount;
         return nextState;
     }
 
+    /**
+     * @return the number of child states
+     */
+    public int getChildCount(){
+        return childCount;
+    }
+
+    /**
+     * @param i the rank of the child, in ascending order of labels
+     * @return the label of the i-th child
+     */
+    public char getChildLabel(int i){
+        return labels[i];
+    }
+
+    /**
+     * @param i the rank of the child, in ascending order of labels
+     * @return the i-th child
+     */
+    public State getChild(int i){
+        return children[i];
+    }
+
     public Collection<State> getStates(){
-        return this.success.values();
+        return Arrays.asList(children).subList(0, childCount);
     }
 
     public Collection<Character> getTransitions(){
-        return this.success.keySet();
+        return getSuccess().keySet();
     }
 
     @Override
@@ -143,15 +257,23 @@ public class State
         final StringBuilder sb = new StringBuilder("State{");
         sb.append("depth=").append(depth);
         sb.append(", ID=").append(index);
-        sb.append(", emits=").append(emits);
-        sb.append(", success=").append(success.keySet());
+        sb.append(", emits=").append(emits == null ? null : emit());
+        sb.append(", success=").append(getTransitions());
         sb.append(", failureID=").append(failure == null ? "-1" : failure.index);
         sb.append(", failure=").append(failure);
         sb.append('}');
         return sb.toString();
     }
 
+    /**
+     * @return a copy of the transitions, prefer {@link #getChildLabel(int)} and {@link #getChild(int)} which
+     * do not box the labels
+     */
     public Map<Character, State> getSuccess(){
+        Map<Character, State> success = new TreeMap<>();
+        for (int i = 0; i < childCount; ++i){
+            success.put(labels[i], children[i]);
+        }
         return success;
     }
 
@@ -0,0 +1,216 @@
+/*
+ * AhoCorasickDoubleArrayTrie Project
+ *      https://github.com/hankcs/AhoCorasickDoubleArrayTrie
+ *
+ * Copyright 2008-2016 hankcs <me@hankcs.com>
+ * You may modify and redistribute as long as this attribution remains.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hankcs.algorithm;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * A scanner which carries the state of an {@link AhoCorasickDoubleArrayTrie} across chunks of a text, so that a
+ * stream of any length is scanned in constant memory. Keywords spanning two chunks are found as if the text were
+ * one, and hits are reported with offsets counted from the beginning of the stream.
+ * <p>
+ * A scanner is not thread safe, use one per stream.
+ * </p>
+ *
+ * @author hankcs
+ */
+public class StreamScanner<V>{
+    /**
+     * the size of the buffers used to read streams, in chars and bytes
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    private final AhoCorasickDoubleArrayTrie<V> acdat;
+    private final IStreamHit<V> processor;
+    private int currentState;
+    /**
+     * the amount of chars scanned so far
+     */
+    private long position;
+    private char[] charBuffer;
+    /**
+     * the buffers of {@link #scan(ReadableByteChannel, Charset)}, the decoded chars are written to charBuffer
+     */
+    private ByteBuffer byteBuffer;
+    private CharBuffer decodedBuffer;
+
+    /**
+     * Processor handles the output when hit a keyword in a stream
+     */
+    public interface IStreamHit<V>{
+        /**
+         * Hit a keyword
+         *
+         * @param begin the beginning offset in the stream, inclusive.
+         * @param end   the ending offset in the stream, exclusive.
+         * @param value the value assigned to the keyword
+         */
+        void hit(long begin, long end, V value);
+    }
+
+    /**
+     * @param acdat     the automaton
+     * @param processor A processor which handles the output
+     */
+    public StreamScanner(AhoCorasickDoubleArrayTrie<V> acdat, IStreamHit<V> processor){
+        this.acdat = acdat;
+        this.processor = processor;
+    }
+
+    /**
+     * Scan the next chunk of the text
+     *
+     * @param text the chunk
+     */
+    public void feed(CharSequence text){
+        for (int i = 0; i < text.length(); ++i){
+            next(text.charAt(i));
+        }
+    }
+
+    /**
+     * Scan the next chunk of the text
+     *
+     * @param text   the chars
+     * @param offset the first char of the chunk
+     * @param length the length of the chunk
+     */
+    public void feed(char[] text, int offset, int length){
+        for (int i = offset, limit = offset + length; i < limit; ++i){
+            next(text[i]);
+        }
+    }
+
+    /**
+     * Scan the remaining chars of a buffer as the next chunk, the position of the buffer is moved to its limit
+     *
+     * @param text the chunk
+     */
+    public void feed(CharBuffer text){
+        for (int i = text.position(), limit = text.limit(); i < limit; ++i){
+            next(text.get(i));
+        }
+        ((Buffer) text).position(text.limit());
+    }
+
+    /**
+     * Scan a reader to its end. The reader is not closed.
+     *
+     * @param reader the reader
+     * @throws IOException if reading fails
+     */
+    public void scan(Reader reader) throws IOException{
+        if (charBuffer == null){
+            charBuffer = new char[BUFFER_SIZE];
+        }
+        int length;
+        while ((length = reader.read(charBuffer)) != -1){
+            feed(charBuffer, 0, length);
+        }
+    }
+
+    /**
+     * Scan a blocking channel to its end, decoding it with a charset. Malformed input is replaced by the replacement
+     * character of the charset, so the offsets are those of the decoded text. The channel is not closed.
+     *
+     * @param channel the channel
+     * @param charset the charset of the bytes
+     * @throws IOException if reading fails
+     */
+    public void scan(ReadableByteChannel channel, Charset charset) throws IOException{
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        if (byteBuffer == null){
+            if (charBuffer == null){
+                charBuffer = new char[BUFFER_SIZE];
+            }
+            byteBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+            decodedBuffer = CharBuffer.wrap(charBuffer);
+        }
+        // a previous scan may have failed halfway
+        ByteBuffer bytes = byteBuffer;
+        CharBuffer chars = decodedBuffer;
+        ((Buffer) bytes).clear();
+        ((Buffer) chars).clear();
+        boolean endOfInput = false;
+        while (true){
+            if (!endOfInput){
+                endOfInput = channel.read(bytes) == -1;
+            }
+            ((Buffer) bytes).flip();
+            CoderResult result = decoder.decode(bytes, chars, endOfInput);
+            bytes.compact();
+            ((Buffer) chars).flip();
+            feed(chars);
+            ((Buffer) chars).clear();
+            // a full char buffer leaves bytes behind, keep decoding them
+            if (endOfInput && !result.isOverflow()) break;
+        }
+        while (decoder.flush(chars).isOverflow()){
+            ((Buffer) chars).flip();
+            feed(chars);
+            ((Buffer) chars).clear();
+        }
+        ((Buffer) chars).flip();
+        feed(chars);
+    }
+
+    /**
+     * @return the amount of chars scanned so far, the offset at which the next chunk begins
+     */
+    public long position(){
+        return position;
+    }
+
+    /**
+     * Forget the chars scanned so far, to scan a new stream
+     */
+    public void reset(){
+        currentState = 0;
+        position = 0;
+    }
+
+    private void next(char c){
+        currentState = acdat.getState(currentState, c);
+        ++position;
+        int[] outputOffsets = acdat.outputOffsets;
+        int[] outputIds = acdat.outputIds;
+        for (int j = outputOffsets[currentState], end = outputOffsets[currentState + 1]; j < end; ++j){
+            int hit = outputIds[j];
+            if (hit < 0){
+                j = outputOffsets[-hit - 1] - 1;
+                end = outputOffsets[-hit];
+                continue;
+            }
+            processor.hit(position - acdat.l[hit], position, acdat.v[hit]);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * AhoCorasickDoubleArrayTrie Project
+ *      https://github.com/hankcs/AhoCorasickDoubleArrayTrie
+ *
+ * Copyright 2008-2016 hankcs <me@hankcs.com>
+ * You may modify and redistribute as long as this attribution remains.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hankcs.algorithm;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The characters which make up words, for matching whole words with
+ * {@link AhoCorasickDoubleArrayTrie#parseText(CharSequence, WordCharacters, AhoCorasickDoubleArrayTrie.IHitFull)}.
+ * A hit is a whole word when the character before it and the character after it are not word characters, or are
+ * the ends of the text. The set is a bitmap of the chars, a lookup is a shift and a mask.
+ *
+ * @author hankcs
+ */
+public class WordCharacters{
+    /**
+     * the ASCII letters and digits
+     */
+    public static final WordCharacters ASCII_ALPHANUMERIC;
+    /**
+     * the letters and digits of Unicode, as told by {@link Character#isLetterOrDigit(char)}
+     */
+    public static final WordCharacters LETTER_OR_DIGIT;
+
+    static{
+        long[] ascii = new long[1 << 10];
+        long[] unicode = new long[1 << 10];
+        for (int c = 0; c <= Character.MAX_VALUE; ++c){
+            if (c < 0x80 && Character.isLetterOrDigit(c)) ascii[c >>> 6] |= 1L << c;
+            if (Character.isLetterOrDigit(c)) unicode[c >>> 6] |= 1L << c;
+        }
+        ASCII_ALPHANUMERIC = new WordCharacters(ascii);
+        LETTER_OR_DIGIT = new WordCharacters(unicode);
+    }
+
+    /**
+     * one bit per char
+     */
+    private final long[] bits;
+
+    private WordCharacters(long[] bits){
+        this.bits = bits;
+    }
+
+    /**
+     * @param characters the word characters, the bits past {@link Character#MAX_VALUE} are ignored
+     * @return the set of these characters
+     */
+    public static WordCharacters of(BitSet characters){
+        return new WordCharacters(Arrays.copyOf(characters.toLongArray(), 1 << 10));
+    }
+
+    /**
+     * @param c a character
+     * @return whether it is a word character
+     */
+    public boolean contains(char c){
+        return (bits[c >>> 6] & 1L << c) != 0;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * AhoCorasickDoubleArrayTrie Project
+ *      https://github.com/hankcs/AhoCorasickDoubleArrayTrie
+ *
+ * Copyright 2008-2016 hankcs <me@hankcs.com>
+ * You may modify and redistribute as long as this attribution remains.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.hankcs.algorithm.AhoCorasickDoubleArrayTrie;
+import com.hankcs.algorithm.BatchResult;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures the throughput of {@link AhoCorasickDoubleArrayTrie#parseTexts(List, ForkJoinPool)} on the sentences of
+ * en/text.txt, which are about as long as tweets, with 1, 2, 4, ... threads up to the amount of processors. Not a
+ * unit test, run it by hand:
+ * <pre>
+ * java -cp target/classes:target/test-classes BatchBenchmark [rounds]
+ * </pre>
+ *
+ * @author hankcs
+ */
+public class BatchBenchmark
+{
+    public static void main(String[] args) throws IOException
+    {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        TreeMap<String, String> map = new TreeMap<>();
+        for (String key : readLines("en/dictionary.txt"))
+        {
+            map.put(key, key);
+        }
+        AhoCorasickDoubleArrayTrie<String> acdat = new AhoCorasickDoubleArrayTrie<>();
+        acdat.build(map);
+        List<String> messages = new ArrayList<>();
+        for (String line : readLines("en/text.txt"))
+        {
+            for (String sentence : line.split("(?<=[.!?])\\s+"))
+            {
+                if (!sentence.isEmpty()) messages.add(sentence);
+            }
+        }
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        System.out.printf("%d messages, %d processors%n", messages.size(), processors);
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < rounds; ++round)
+        {
+            long start = System.nanoTime();
+            List<List<AhoCorasickDoubleArrayTrie.Hit<String>>> results = new ArrayList<>(messages.size());
+            for (String message : messages)
+            {
+                results.add(acdat.parseText(message));
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.printf("parseText per message, keeping the lists: %.0f messages/s%n", messages.size() / (best / 1e9));
+        System.out.printf("%-8s\t%-12s\t%-12s%n", "threads", "messages/s", "hits");
+        for (int threads = 1; ; threads *= 2)
+        {
+            threads = Math.min(threads, processors);
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            best = Long.MAX_VALUE;
+            int hits = 0;
+            for (int round = 0; round < rounds; ++round)
+            {
+                long start = System.nanoTime();
+                BatchResult<String> result = acdat.parseTexts(messages, pool);
+                best = Math.min(best, System.nanoTime() - start);
+                hits = result.hitCount();
+            }
+            pool.shutdown();
+            System.out.printf("%-8d\t%-12.0f\t%-12d%n", threads, messages.size() / (best / 1e9), hits);
+            if (threads == processors) break;
+        }
+    }
+
+    private static List<String> readLines(String path) throws IOException
+    {
+        BufferedReader br = new BufferedReader(new InputStreamReader(BatchBenchmark.class.getClassLoader().getResourceAsStream(path), "UTF-8"));
+        List<String> lines = new ArrayList<>();
+        String line;
+        while ((line = br.readLine()) != null)
+        {
+            lines.add(line);
+        }
+        br.close();
+        return lines;
+    }
+}
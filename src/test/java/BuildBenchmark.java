@@ -0,0 +1,124 @@
+/*
+ * AhoCorasickDoubleArrayTrie Project
+ *      https://github.com/hankcs/AhoCorasickDoubleArrayTrie
+ *
+ * Copyright 2008-2016 hankcs <me@hankcs.com>
+ * You may modify and redistribute as long as this attribution remains.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import com.hankcs.algorithm.AhoCorasickDoubleArrayTrie;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures how the build time and the size of the double array scale with the dictionary size, on random keys
+ * drawn from the CJK range.
+ * Not a unit test, run it by hand, e.g. with -Xmx4g and the key counts as arguments:
+ * <pre>
+ * java -Xmx4g -cp target/classes:target/test-classes BuildBenchmark 10000 100000 1000000 5000000
+ * </pre>
+ *
+ * @author hankcs
+ */
+public class BuildBenchmark
+{
+    public static void main(String[] args) throws IOException
+    {
+        int[] sizes = {10000, 50000, 100000, 500000, 1000000, 5000000};
+        if (args.length > 0)
+        {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; ++i)
+            {
+                sizes[i] = Integer.parseInt(args[i]);
+            }
+        }
+        System.out.printf("%-12s\t%-12s\t%-12s\t%-12s\t%-12s%n", "keys", "build ms", "us/key", "positions", "positions/key");
+        for (int size : sizes)
+        {
+            String[] keys = randomKeys(size, new Random(size));
+            String[] values = keys.clone();
+            AhoCorasickDoubleArrayTrie<String> acdat = new AhoCorasickDoubleArrayTrie<>();
+            long start = System.nanoTime();
+            acdat.build(keys, values);
+            long costTime = System.nanoTime() - start;
+            int positions = positions(acdat);
+            System.out.printf("%-12d\t%-12d\t%-12.2f\t%-12d\t%-12.2f%n", keys.length, costTime / 1000000, costTime / 1000.0 / keys.length,
+                              positions, (double) positions / keys.length);
+        }
+    }
+
+    /**
+     * The length of base and check, read from the header of the binary format: magic, version, then the size
+     */
+    private static int positions(AhoCorasickDoubleArrayTrie<String> acdat) throws IOException
+    {
+        final int[] header = new int[3];
+        final int[] written = new int[1];
+        try
+        {
+            acdat.save(new DataOutputStream(new OutputStream()
+            {
+                @Override
+                public void write(int b) throws IOException
+                {
+                    if (written[0] == 12) throw new EOFException();
+                    header[written[0] / 4] = header[written[0] / 4] << 8 | (b & 0xFF);
+                    ++written[0];
+                }
+            }));
+        }
+        catch (EOFException enough)
+        {
+            // the rest of the automaton is not needed
+        }
+        return header[2];
+    }
+
+    /**
+     * Random keys of 2 to 6 characters, a few thousand characters being far more frequent than the others,
+     * which resembles a Chinese lexicon
+     */
+    private static String[] randomKeys(int size, Random random)
+    {
+        String[] keys = new String[size];
+        char[] buffer = new char[6];
+        for (int i = 0; i < size; ++i)
+        {
+            int length = 2 + random.nextInt(5);
+            for (int j = 0; j < length; ++j)
+            {
+                int rank = random.nextInt(3) == 0 ? random.nextInt(20000) : random.nextInt(3000);
+                buffer[j] = (char) (0x4E00 + rank);
+            }
+            keys[i] = new String(buffer, 0, length);
+        }
+        Arrays.sort(keys);
+        int unique = 0;
+        for (int i = 0; i < size; ++i)
+        {
+            if (unique == 0 || !keys[i].equals(keys[unique - 1]))
+            {
+                keys[unique++] = keys[i];
+            }
+        }
+        return Arrays.copyOf(keys, unique);
+    }
+}
@@ -7,12 +7,24 @@
 
 import com.hankcs.algorithm.AhoCorasickDoubleArrayTrie;
 import com.hankcs.algorithm.AhoCorasickDoubleArrayTrie.Hit;
+import com.hankcs.algorithm.BatchResult;
+import com.hankcs.algorithm.HitBuffer;
+import com.hankcs.algorithm.ByteAhoCorasickDoubleArrayTrie;
+import com.hankcs.algorithm.MappedAhoCorasickDoubleArrayTrie;
+import com.hankcs.algorithm.Segmenter;
+import com.hankcs.algorithm.StreamScanner;
+import com.hankcs.algorithm.WordCharacters;
 
 import junit.framework.TestCase;
 import org.ahocorasick.trie.Trie;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * @author hankcs
@@ -93,6 +105,27 @@ public class TestAhoCorasickDoubleArrayTrie extends TestCase
         assertEquals(longWordLength, result.get(1).end);
     }
 
+    public void testLargeAlphabet()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (char c = 1; c < Character.MAX_VALUE; ++c)
+        {
+            sb.append(c);
+        }
+        String word = sb.toString();
+        AhoCorasickDoubleArrayTrie<String> acdat = new AhoCorasickDoubleArrayTrie<String>();
+        acdat.build(Collections.singletonMap(word, word));
+        assertEquals(1, acdat.parseText("\uffff" + word).size());
+        try
+        {
+            acdat.build(Collections.singletonMap("\u0000" + word, word));
+            fail("more distinct characters than char codes");
+        }
+        catch (IllegalArgumentException expected)
+        {
+        }
+    }
+
     public void testBuildAndParseWithBigFile() throws IOException
     {
         // Load test data from disk
@@ -302,6 +335,931 @@ public class TestAhoCorasickDoubleArrayTrie extends TestCase
         in.close();
     }
 
+    public void testSaveAndLoadMapped() throws IOException
+    {
+        Set<String> dictionary = loadDictionary("cn/dictionary.txt");
+        String text = loadText("cn/text.txt");
+        TreeMap<String, String> map = new TreeMap<>();
+        for (String key : dictionary)
+        {
+            map.put(key, key);
+        }
+        AhoCorasickDoubleArrayTrie<String> acdat = new AhoCorasickDoubleArrayTrie<>();
+        acdat.build(map);
+        File file = File.createTempFile("acdat", ".bin");
+        file.deleteOnExit();
+        acdat.save(file);
+
+        MappedAhoCorasickDoubleArrayTrie<String> mapped = MappedAhoCorasickDoubleArrayTrie.load(file, map.values().toArray(new String[0]));
+        assertEquals(acdat.size(), mapped.size());
+        assertEquals(acdat.parseText(text).toString(), mapped.parseText(text).toString());
+        assertEquals(acdat.findFirst(text).toString(), mapped.findFirst(text).toString());
+        assertTrue(mapped.matches(text));
+    }
+
+    public void testOutputLinks() throws IOException
+    {
+        Set<String> dictionary = loadDictionary("cn/dictionary.txt");
+        String text = loadText("cn/text.txt");
+        TreeMap<String, String> map = new TreeMap<>();
+        for (String key : dictionary)
+        {
+            map.put(key, key);
+        }
+        AhoCorasickDoubleArrayTrie<String> copied = new AhoCorasickDoubleArrayTrie<>();
+        copied.build(map);
+        AhoCorasickDoubleArrayTrie<String> linked = new AhoCorasickDoubleArrayTrie<>();
+        linked.build(map, new AhoCorasickDoubleArrayTrie.BuildOptions().outputLinks(true));
+        assertEquals(sortHits(copied.parseText(text)), sortHits(linked.parseText(text)));
+        assertEquals(copied.matches(text), linked.matches(text));
+        assertEquals(copied.findFirst(text).end, linked.findFirst(text).end);
+
+        File file = File.createTempFile("acdat", ".bin");
+        file.deleteOnExit();
+        linked.save(file);
+        MappedAhoCorasickDoubleArrayTrie<String> mapped = MappedAhoCorasickDoubleArrayTrie.load(file, map.values().toArray(new String[0]));
+        assertEquals(linked.parseText(text).toString(), mapped.parseText(text).toString());
+    }
+
+    public void testBuildFromSortedKeys() throws IOException
+    {
+        Set<String> dictionary = loadDictionary("cn/dictionary.txt");
+        String text = loadText("cn/text.txt");
+        TreeMap<String, String> map = new TreeMap<>();
+        for (String key : dictionary)
+        {
+            map.put(key, key);
+        }
+        String[] keys = map.keySet().toArray(new String[0]);
+        for (boolean outputLinks : new boolean[]{false, true})
+        {
+            AhoCorasickDoubleArrayTrie.BuildOptions options = new AhoCorasickDoubleArrayTrie.BuildOptions().outputLinks(outputLinks);
+            AhoCorasickDoubleArrayTrie<String> fromMap = new AhoCorasickDoubleArrayTrie<>();
+            fromMap.build(map, options);
+            AhoCorasickDoubleArrayTrie<String> fromSortedKeys = new AhoCorasickDoubleArrayTrie<>();
+            fromSortedKeys.build(keys, keys.clone(), options);
+            assertTrue(Arrays.equals(toBytes(fromMap), toBytes(fromSortedKeys)));
+            assertEquals(fromMap.parseText(text).toString(), fromSortedKeys.parseText(text).toString());
+        }
+
+        AhoCorasickDoubleArrayTrie<String> fromIterator = new AhoCorasickDoubleArrayTrie<>();
+        fromIterator.build(Arrays.asList("he", "hers", "his", "she").iterator(), new AhoCorasickDoubleArrayTrie.BuildOptions());
+        assertEquals(3, fromIterator.parseText("ushers").size());
+        try
+        {
+            fromIterator.build(new String[]{"she", "he"}, new String[2]);
+            fail("unsorted keys must be rejected");
+        }
+        catch (IllegalArgumentException expected)
+        {
+        }
+    }
+
+    public void testParallelBuild() throws IOException
+    {
+        String text = loadText("cn/text.txt") + loadText("en/text.txt");
+        // enough keywords for the pool to be used
+        TreeMap<String, String> map = new TreeMap<>();
+        for (String key : loadDictionary("cn/dictionary.txt"))
+        {
+            map.put(key, key);
+        }
+        for (String key : loadDictionary("en/dictionary.txt"))
+        {
+            map.put(key, key);
+            map.put(key + "s", key + "s");
+        }
+        assertTrue(map.size() > 300000);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try
+        {
+            for (boolean outputLinks : new boolean[]{false, true})
+            {
+                AhoCorasickDoubleArrayTrie<String> sequential = new AhoCorasickDoubleArrayTrie<>();
+                sequential.build(map, new AhoCorasickDoubleArrayTrie.BuildOptions().outputLinks(outputLinks));
+                AhoCorasickDoubleArrayTrie<String> parallel = new AhoCorasickDoubleArrayTrie<>();
+                parallel.build(map, new AhoCorasickDoubleArrayTrie.BuildOptions().outputLinks(outputLinks).parallel(pool));
+                assertTrue(Arrays.equals(toBytes(sequential), toBytes(parallel)));
+                assertEquals(sequential.parseText(text).toString(), parallel.parseText(text).toString());
+            }
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    public void testDfa() throws IOException
+    {
+        String text = loadText("en/text.txt");
+        TreeMap<String, String> map = new TreeMap<>();
+        for (String key : loadDictionary("en/dictionary.txt"))
+        {
+            // every 50th keyword keeps the table small
+            if (key.hashCode() % 50 == 0) map.put(key, key);
+        }
+        for (boolean outputLinks : new boolean[]{false, true})
+        {
+            AhoCorasickDoubleArrayTrie<String> acdat = new AhoCorasickDoubleArrayTrie<>();
+            acdat.build(map, new AhoCorasickDoubleArrayTrie.BuildOptions().outputLinks(outputLinks));
+            AhoCorasickDoubleArrayTrie<String> dfa = new AhoCorasickDoubleArrayTrie<>();
+            dfa.build(map, new AhoCorasickDoubleArrayTrie.BuildOptions().outputLinks(outputLinks).dfa(true));
+            assertEquals(acdat.parseText(text).toString(), dfa.parseText(text).toString());
+            assertEquals(acdat.findFirst(text).toString(), dfa.findFirst(text).toString());
+            assertEquals(acdat.matches("\uffff" + text.substring(0, 100)), dfa.matches("\uffff" + text.substring(0, 100)));
+        }
+        AhoCorasickDoubleArrayTrie<String> acdat = new AhoCorasickDoubleArrayTrie<>();
+        acdat.build(map);
+        String[] keys = map.keySet().toArray(new String[0]);
+        AhoCorasickDoubleArrayTrie<String> fromSortedKeys = new AhoCorasickDoubleArrayTrie<>();
+        fromSortedKeys.build(keys, keys.clone(), new AhoCorasickDoubleArrayTrie.BuildOptions().dfa(true));
+        assertEquals(acdat.parseText(text).toString(), fromSortedKeys.parseText(text).toString());
+    }
+
+    public void testRebuildWithoutDfa() throws IOException
+    {
+        TreeMap<String, String> first = new TreeMap<>();
+        for (String key : new String[]{"he", "hers", "his", "she"})
+        {
+            first.put(key, key);
+        }
+        TreeMap<String, String> second = new TreeMap<>();
+        for (String key : new String[]{"abc", "xyz", "zz"})
+        {
+            second.put(key, key);
+        }
+        String text = "abcxyzz ushers";
+        AhoCorasickDoubleArrayTrie<String> fresh = new AhoCorasickDoubleArrayTrie<>();
+        fresh.build(second);
+        String expected = fresh.parseText(text).toString();
+        assertEquals("[[0:3]=abc, [3:6]=xyz, [5:7]=zz]", expected);
+
+        // the transition table of the first build must not survive the second
+        AhoCorasickDoubleArrayTrie<String> acdat = new AhoCorasickDoubleArrayTrie<>();
+        acdat.build(first, new AhoCorasickDoubleArrayTrie.BuildOptions().dfa(true));
+        acdat.build(second);
+        assertEquals(expected, acdat.parseText(text).toString());
+        acdat.build(first, new AhoCorasickDoubleArrayTrie.BuildOptions().dfa(true));
+        acdat.build(second.keySet().toArray(new String[0]), second.values().toArray(new String[0]));
+        assertEquals(expected, acdat.parseText(text).toString());
+    }
+
+    public void testByteAutomaton() throws IOException
+    {
+        Set<String> dictionary = loadDictionary("cn/dictionary.txt");
+        String text = loadText("cn/text.txt");
+        TreeMap<String, String> map = new TreeMap<>();
+        for (String key : dictionary)
+        {
+            map.put(key, key);
+        }
+        AhoCorasickDoubleArrayTrie<String> acdat = new AhoCorasickDoubleArrayTrie<>();
+        acdat.build(map);
+        ByteAhoCorasickDoubleArrayTrie<String> bytesAcdat = new ByteAhoCorasickDoubleArrayTrie<>();
+        bytesAcdat.build(map);
+        byte[] bytes = text.getBytes("UTF-8");
+        List<Hit<String>> hits = bytesAcdat.parseText(bytes);
+        assertEquals(acdat.parseText(text).size(), hits.size());
+        for (Hit<String> hit : hits)
+        {
+            assertEquals(hit.value, new String(bytes, hit.begin, hit.end - hit.begin, "UTF-8"));
+        }
+
+        // a direct buffer with a window not starting at 0 reports the same indices as get(int)
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length + 3);
+        buffer.put(new byte[]{'x', 'y', 'z'}).put(bytes);
+        buffer.position(3);
+        final int[] count = new int[1];
+        bytesAcdat.parseText(buffer, new AhoCorasickDoubleArrayTrie.IHit<String>()
+        {
+            @Override
+            public void hit(int begin, int end, String value)
+            {
+                byte[] keyword = new byte[end - begin];
+                for (int i = begin; i < end; ++i) keyword[i - begin] = buffer.get(i);
+                assertEquals(value, new String(keyword, Charset.forName("UTF-8")));
+                ++count[0];
+            }
+        });
+        assertEquals(hits.size(), count[0]);
+        assertEquals(3, buffer.position());
+        assertEquals(acdat.matches(text), bytesAcdat.matches(bytes));
+        assertEquals(hits.get(0).toString(), bytesAcdat.findFirst(bytes).toString());
+
+        // only the ASCII letters fold safely in UTF-8
+        map.clear();
+        map.put("h\u00e9", "h\u00e9");
+        bytesAcdat.build(map, new AhoCorasickDoubleArrayTrie.BuildOptions().fold(AhoCorasickDoubleArrayTrie.Folding.ASCII_CASE));
+        assertEquals("[[1:4]=h\u00e9]", bytesAcdat.parseText("aH\u00e9".getBytes("UTF-8")).toString());
+        for (AhoCorasickDoubleArrayTrie.Folding folding : new AhoCorasickDoubleArrayTrie.Folding[]{AhoCorasickDoubleArrayTrie.Folding.SIMPLE_CASE, AhoCorasickDoubleArrayTrie.Folding.WIDTH})
+        {
+            try
+            {
+                bytesAcdat.build(map, new AhoCorasickDoubleArrayTrie.BuildOptions().fold(folding));
+                fail("folded UTF-8 bytes with " + folding);
+            }
+            catch (IllegalArgumentException expected)
+            {
+            }
+        }
+
+        // an unpaired surrogate is encoded as '?', the two keys would collapse into one
+        map.clear();
+        map.put("a?", "question mark");
+        map.put("a\ud800", "surrogate");
+        try
+        {
+            bytesAcdat.build(map);
+            fail("keys with the same UTF-8 bytes");
+        }
+        catch (IllegalArgumentException expected)
+        {
+        }
+    }
+
+    public void testStreamScanner() throws IOException
+    {
+        Set<String> dictionary = loadDictionary("cn/dictionary.txt");
+        String text = loadText("cn/text.txt");
+        TreeMap<String, String> map = new TreeMap<>();
+        for (String key : dictionary)
+        {
+            map.put(key, key);
+        }
+        AhoCorasickDoubleArrayTrie<String> acdat = new AhoCorasickDoubleArrayTrie<>();
+        acdat.build(map);
+        String expected = acdat.parseText(text).toString();
+
+        final List<Hit<String>> hits = new ArrayList<>();
+        StreamScanner<String> scanner = new StreamScanner<>(acdat, new StreamScanner.IStreamHit<String>()
+        {
+            @Override
+            public void hit(long begin, long end, String value)
+            {
+                hits.add(new Hit<>((int) begin, (int) end, value));
+            }
+        });
+        // keywords spanning two chunks
+        scanner.feed(text.substring(0, 1001));
+        scanner.feed(CharBuffer.wrap(text, 1001, text.length()));
+        assertEquals(text.length(), scanner.position());
+        assertEquals(expected, hits.toString());
+
+        hits.clear();
+        scanner.reset();
+        scanner.scan(new StringReader(text));
+        assertEquals(expected, hits.toString());
+
+        hits.clear();
+        scanner.reset();
+        scanner.scan(Channels.newChannel(new ByteArrayInputStream(text.getBytes("UTF-8"))), Charset.forName("UTF-8"));
+        assertEquals(expected, hits.toString());
+
+        // the buffers are reused by the next channel
+        hits.clear();
+        scanner.reset();
+        scanner.scan(Channels.newChannel(new ByteArrayInputStream(text.getBytes("UTF-16BE"))), Charset.forName("UTF-16BE"));
+        assertEquals(expected, hits.toString());
+    }
+
+    public void testParallelScan() throws IOException
+    {
+        Set<String> dictionary = loadDictionary("cn/dictionary.txt");
+        String text = loadText("cn/text.txt");
+        TreeMap<String, String> map = new TreeMap<>();
+        for (String key : dictionary)
+        {
+            map.put(key, key);
+        }
+        AhoCorasickDoubleArrayTrie<String> acdat = new AhoCorasickDoubleArrayTrie<>();
+        acdat.build(map);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try
+        {
+            // the text is cut into more than a dozen chunks
+            assertEquals(acdat.parseText(text).toString(), acdat.parseText(text, pool).toString());
+            assertTrue(acdat.parseText("", pool).isEmpty());
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    public void testBatch() throws IOException
+    {
+        Set<String> dictionary = loadDictionary("en/dictionary.txt");
+        String text = loadText("en/text.txt");
+        TreeMap<String, String> map = new TreeMap<>();
+        for (String key : dictionary)
+        {
+            map.put(key, key);
+        }
+        AhoCorasickDoubleArrayTrie<String> acdat = new AhoCorasickDoubleArrayTrie<>();
+        acdat.build(map);
+        List<String> lines = Arrays.asList(text.split("\n"));
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try
+        {
+            BatchResult<String> batch = acdat.parseTexts(lines, pool);
+            assertEquals(lines.size(), batch.documentCount());
+            int hitCount = 0;
+            for (int d = 0; d < lines.size(); ++d)
+            {
+                assertEquals(acdat.parseText(lines.get(d)).toString(), batch.hits(d).toString());
+                hitCount += batch.hitCount(d);
+            }
+            assertEquals(hitCount, batch.hitCount());
+            assertEquals(batch.hitCount(), acdat.parseTexts(lines, null).hitCount());
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    public void testHitBuffer() throws IOException
+    {
+        Set<String> dictionary = loadDictionary("cn/dictionary.txt");
+        final String text = loadText("cn/text.txt");
+        TreeMap<String, String> map = new TreeMap<>();
+        for (String key : dictionary)
+        {
+            map.put(key, key);
+        }
+        final AhoCorasickDoubleArrayTrie<String> acdat = new AhoCorasickDoubleArrayTrie<>();
+        acdat.build(map);
+        List<Hit<String>> expected = acdat.parseText(text);
+
+        HitBuffer hits = new HitBuffer();
+        for (int round = 0; round < 2; ++round)
+        {
+            hits.clear();
+            acdat.parseText(text, hits);
+            assertEquals(expected.size(), hits.size());
+            for (int i = 0; i < hits.size(); ++i)
+            {
+                assertEquals(expected.get(i).toString(), new Hit<>(hits.begin(i), hits.end(i), acdat.get(hits.index(i))).toString());
+            }
+        }
+
+        final int[] count = new int[1];
+        acdat.parseText(text, new AhoCorasickDoubleArrayTrie.IHitFull<String>()
+        {
+            @Override
+            public void hit(int begin, int end, String value, int index)
+            {
+                assertEquals(text.substring(begin, end), value);
+                assertEquals(value, acdat.get(index));
+                ++count[0];
+            }
+        });
+        assertEquals(expected.size(), count[0]);
+    }
+
+    public void testCountHits() throws IOException
+    {
+        Set<String> dictionary = loadDictionary("en/dictionary.txt");
+        String text = loadText("en/text.txt");
+        TreeMap<String, String> map = new TreeMap<>();
+        for (String key : dictionary)
+        {
+            map.put(key, key);
+        }
+        for (boolean outputLinks : new boolean[]{false, true})
+        {
+            AhoCorasickDoubleArrayTrie<String> acdat = new AhoCorasickDoubleArrayTrie<>();
+            acdat.build(map, new AhoCorasickDoubleArrayTrie.BuildOptions().outputLinks(outputLinks));
+            HitBuffer hits = new HitBuffer();
+            acdat.parseText(text, hits);
+            int[] expected = new int[acdat.size()];
+            for (int i = 0; i < hits.size(); ++i)
+            {
+                ++expected[hits.index(i)];
+            }
+            int[] counts = new int[acdat.size()];
+            assertEquals(hits.size(), acdat.countHits(text, counts));
+            assertTrue(Arrays.equals(expected, counts));
+            assertEquals(hits.size(), acdat.countHits(text));
+        }
+    }
+
+    public void testLeftmostLongest() throws IOException
+    {
+        TreeMap<String, String> map = new TreeMap<>();
+        for (String key : new String[]{"a", "ab", "abcd", "bcdef", "cde", "ef", "f"})
+        {
+            map.put(key, key);
+        }
+        AhoCorasickDoubleArrayTrie<String> acdat = new AhoCorasickDoubleArrayTrie<>();
+        acdat.build(map);
+        assertEquals("[[0:4]=abcd, [4:6]=ef, [7:8]=a]", acdat.parseText("abcdefxa", AhoCorasickDoubleArrayTrie.MatchKind.LEFTMOST_LONGEST).toString());
+        assertEquals("[[0:2]=ab, [4:6]=ef]", acdat.parseText("abcxef", AhoCorasickDoubleArrayTrie.MatchKind.LEFTMOST_LONGEST).toString());
+        assertEquals(acdat.parseText("abcdef").toString(), acdat.parseText("abcdef", AhoCorasickDoubleArrayTrie.MatchKind.STANDARD).toString());
+
+        for (String language : new String[]{"cn", "en"})
+        {
+            map.clear();
+            for (String key : loadDictionary(language + "/dictionary.txt"))
+            {
+                map.put(key, key);
+            }
+            String text = loadText(language + "/text.txt");
+            acdat = new AhoCorasickDoubleArrayTrie<>();
+            acdat.build(map);
+            assertEquals(leftmost(acdat.parseText(text), null).toString(), acdat.parseText(text, AhoCorasickDoubleArrayTrie.MatchKind.LEFTMOST_LONGEST).toString());
+        }
+    }
+
+    public void testLeftmostFirst() throws IOException
+    {
+        // the priority is the iteration order of the map
+        LinkedHashMap<String, String> map = new LinkedHashMap<>();
+        for (String key : new String[]{"ab", "abcd", "a", "bcdef", "cde", "ef"})
+        {
+            map.put(key, key);
+        }
+        AhoCorasickDoubleArrayTrie<String> acdat = new AhoCorasickDoubleArrayTrie<>();
+        acdat.build(map);
+        assertEquals("[[0:2]=ab, [2:5]=cde, [7:8]=a]", acdat.parseText("abcdefxa", AhoCorasickDoubleArrayTrie.MatchKind.LEFTMOST_FIRST).toString());
+        assertEquals("[[0:4]=abcd, [4:6]=ef, [7:8]=a]", acdat.parseText("abcdefxa", AhoCorasickDoubleArrayTrie.MatchKind.LEFTMOST_LONGEST).toString());
+
+        for (String language : new String[]{"cn", "en"})
+        {
+            List<String> keys = new ArrayList<>(loadDictionary(language + "/dictionary.txt"));
+            Collections.shuffle(keys, new Random(42));
+            map.clear();
+            final Map<String, Integer> priority = new HashMap<>();
+            for (String key : keys)
+            {
+                priority.put(key, priority.size());
+                map.put(key, key);
+            }
+            String text = loadText(language + "/text.txt");
+            acdat = new AhoCorasickDoubleArrayTrie<>();
+            acdat.build(map);
+            assertEquals(leftmost(acdat.parseText(text), priority).toString(), acdat.parseText(text, AhoCorasickDoubleArrayTrie.MatchKind.LEFTMOST_FIRST).toString());
+        }
+    }
+
+    public void testFolding() throws IOException
+    {
+        TreeMap<String, String> map = new TreeMap<>();
+        for (String key : new String[]{"hello", "World", "\u4e2d\u6587", "world"})
+        {
+            map.put(key, key);
+        }
+        AhoCorasickDoubleArrayTrie<String> acdat = new AhoCorasickDoubleArrayTrie<>();
+        acdat.build(map, new AhoCorasickDoubleArrayTrie.BuildOptions().fold(AhoCorasickDoubleArrayTrie.Folding.WIDTH, AhoCorasickDoubleArrayTrie.Folding.SIMPLE_CASE));
+        String text = "HeLLo\u3000\uff37\uff4f\uff52\uff4c\uff44 \u4e2d\u6587 \u212a";
+        assertEquals("[[0:5]=hello, [6:11]=world, [6:11]=World, [12:14]=\u4e2d\u6587]", acdat.parseText(text).toString());
+
+        acdat.build(map, new AhoCorasickDoubleArrayTrie.BuildOptions().fold(AhoCorasickDoubleArrayTrie.Folding.ASCII_CASE));
+        assertEquals("[[0:5]=hello, [12:14]=\u4e2d\u6587]", acdat.parseText(text).toString());
+
+        // the folded code table is saved along with the automaton
+        String[] keys = {"hello", "world", "\u4e2d\u6587"};
+        acdat.build(keys, keys, new AhoCorasickDoubleArrayTrie.BuildOptions().fold(AhoCorasickDoubleArrayTrie.Folding.WIDTH, AhoCorasickDoubleArrayTrie.Folding.ASCII_CASE));
+        assertEquals("[[0:5]=hello, [6:11]=world, [12:14]=\u4e2d\u6587]", acdat.parseText(text).toString());
+        File file = File.createTempFile("acdat", ".bin");
+        file.deleteOnExit();
+        acdat.save(file);
+        MappedAhoCorasickDoubleArrayTrie<String> mapped = MappedAhoCorasickDoubleArrayTrie.load(file, keys);
+        assertEquals(acdat.parseText(text).toString(), mapped.parseText(text).toString());
+
+        try
+        {
+            acdat.build(new String[]{"B", "a"}, new String[]{"B", "a"}, new AhoCorasickDoubleArrayTrie.BuildOptions().fold(AhoCorasickDoubleArrayTrie.Folding.ASCII_CASE));
+            fail("keys out of order once folded");
+        }
+        catch (IllegalArgumentException expected)
+        {
+        }
+
+        // on a lower case dictionary, scanning folded is scanning the lower case text
+        Set<String> dictionary = loadDictionary("en/dictionary.txt");
+        map.clear();
+        for (String key : dictionary)
+        {
+            map.put(key.toLowerCase(Locale.ROOT), key);
+        }
+        String englishText = loadText("en/text.txt");
+        acdat.build(map);
+        String expected = acdat.parseText(englishText.toLowerCase(Locale.ROOT)).toString();
+        acdat.build(map, new AhoCorasickDoubleArrayTrie.BuildOptions().fold(AhoCorasickDoubleArrayTrie.Folding.ASCII_CASE));
+        assertEquals(expected, acdat.parseText(englishText).toString());
+
+        // every folding reaches its fixed point in one step, a character and its folding share a code
+        for (AhoCorasickDoubleArrayTrie.Folding folding : AhoCorasickDoubleArrayTrie.Folding.values())
+        {
+            for (int c = 0; c <= Character.MAX_VALUE; ++c)
+            {
+                char f = folding.fold((char) c);
+                assertEquals(folding + " of " + c, f, folding.fold(f));
+            }
+        }
+    }
+
+    public void testWholeWords() throws IOException
+    {
+        TreeMap<String, String> map = new TreeMap<>();
+        for (String key : new String[]{"he", "there", "her", "caf", "caf\u00e9"})
+        {
+            map.put(key, key);
+        }
+        AhoCorasickDoubleArrayTrie<String> acdat = new AhoCorasickDoubleArrayTrie<>();
+        acdat.build(map);
+        String text = "there he is, her caf\u00e9";
+        assertEquals("[[0:5]=there, [6:8]=he, [13:16]=her, [17:21]=caf\u00e9]", acdat.parseText(text, WordCharacters.LETTER_OR_DIGIT).toString());
+        // the accented letter is no ASCII word character
+        assertEquals("[[0:5]=there, [6:8]=he, [13:16]=her, [17:20]=caf, [17:21]=caf\u00e9]", acdat.parseText(text, WordCharacters.ASCII_ALPHANUMERIC).toString());
+        BitSet letters = new BitSet();
+        letters.set('a', 'z' + 1);
+        assertEquals("[[2:4]=he]", acdat.parseText("x9he", WordCharacters.of(letters)).toString());
+        assertEquals("[]", acdat.parseText("x9he", WordCharacters.ASCII_ALPHANUMERIC).toString());
+
+        map.clear();
+        for (String key : loadDictionary("en/dictionary.txt"))
+        {
+            map.put(key, key);
+        }
+        String englishText = loadText("en/text.txt");
+        acdat.build(map);
+        List<Hit<String>> expected = new ArrayList<>();
+        for (Hit<String> hit : acdat.parseText(englishText))
+        {
+            if ((hit.begin == 0 || !Character.isLetterOrDigit(englishText.charAt(hit.begin - 1)))
+                    && (hit.end == englishText.length() || !Character.isLetterOrDigit(englishText.charAt(hit.end))))
+            {
+                expected.add(hit);
+            }
+        }
+        assertEquals(expected.toString(), acdat.parseText(englishText, WordCharacters.LETTER_OR_DIGIT).toString());
+    }
+
+    public void testReplace() throws IOException
+    {
+        TreeMap<String, String> map = new TreeMap<>();
+        map.put("he", "HE");
+        map.put("hers", "HERS");
+        map.put("she", "SHE");
+        AhoCorasickDoubleArrayTrie<String> acdat = new AhoCorasickDoubleArrayTrie<>();
+        acdat.build(map);
+        String text = "ushers say she";
+        assertEquals("uSHErs say SHE", acdat.replace(text, AhoCorasickDoubleArrayTrie.MatchKind.LEFTMOST_LONGEST));
+        assertEquals("u***rs say ***", acdat.redact(text, AhoCorasickDoubleArrayTrie.MatchKind.LEFTMOST_FIRST, '*', new StringBuilder()).toString());
+        StringWriter writer = new StringWriter();
+        acdat.replace(text, AhoCorasickDoubleArrayTrie.MatchKind.LEFTMOST_LONGEST, new AhoCorasickDoubleArrayTrie.IReplacement<String>()
+        {
+            @Override
+            public CharSequence replacement(int begin, int end, String value, int index)
+            {
+                return begin == 1 ? null : "<" + value + ">";
+            }
+        }, writer);
+        assertEquals("ushers say <SHE>", writer.toString());
+        try
+        {
+            acdat.replace(text, AhoCorasickDoubleArrayTrie.MatchKind.STANDARD);
+            fail("overlapping matches replaced");
+        }
+        catch (IllegalArgumentException expected)
+        {
+        }
+
+        // the text between the matches is copied unchanged
+        map.clear();
+        for (String key : loadDictionary("cn/dictionary.txt"))
+        {
+            map.put(key, key);
+        }
+        String chineseText = loadText("cn/text.txt");
+        acdat.build(map);
+        assertEquals(chineseText, acdat.replace(chineseText, AhoCorasickDoubleArrayTrie.MatchKind.LEFTMOST_LONGEST));
+        StringBuilder expected = new StringBuilder(chineseText);
+        for (Hit<String> hit : acdat.parseText(chineseText, AhoCorasickDoubleArrayTrie.MatchKind.LEFTMOST_LONGEST))
+        {
+            for (int i = hit.begin; i < hit.end; ++i)
+            {
+                expected.setCharAt(i, '#');
+            }
+        }
+        assertEquals(expected.toString(), acdat.redact(chineseText, AhoCorasickDoubleArrayTrie.MatchKind.LEFTMOST_LONGEST, '#', new StringBuilder()).toString());
+    }
+
+    public void testExactMatch() throws IOException
+    {
+        TreeMap<String, String> map = new TreeMap<>();
+        for (String key : loadDictionary("cn/dictionary.txt"))
+        {
+            map.put(key, key);
+        }
+        AhoCorasickDoubleArrayTrie<String> acdat = new AhoCorasickDoubleArrayTrie<>();
+        acdat.build(map);
+        int index = 0;
+        for (Map.Entry<String, String> entry : map.entrySet())
+        {
+            assertEquals(index++, acdat.exactMatch(entry.getKey()));
+            assertEquals(entry.getValue(), acdat.get(entry.getKey()));
+        }
+        String text = loadText("cn/text.txt");
+        for (int i = 0; i + 3 <= text.length(); i += 7)
+        {
+            String key = text.substring(i, i + 3);
+            assertEquals(map.containsKey(key), acdat.exactMatch(text, i, i + 3) >= 0);
+        }
+        assertNull(acdat.get("\uffff\u4e2d"));
+
+        Map<String, String> view = acdat.asMap();
+        assertEquals(map, view);
+        assertEquals(map.size(), view.size());
+        assertEquals(new ArrayList<>(map.keySet()), new ArrayList<>(view.keySet()));
+        assertTrue(view.containsKey(map.lastKey()));
+        assertFalse(view.containsKey(map.lastKey() + "\u4e2d\u4e2d\u4e2d"));
+
+        // the view iterates the folded keys
+        TreeMap<String, String> small = new TreeMap<>();
+        small.put("He", "he");
+        small.put("hers", "hers");
+        acdat.build(small, new AhoCorasickDoubleArrayTrie.BuildOptions().fold(AhoCorasickDoubleArrayTrie.Folding.ASCII_CASE));
+        assertEquals("{he=he, hers=hers}", acdat.asMap().toString());
+        assertEquals("hers", acdat.get("HERS"));
+        assertEquals(-1, acdat.exactMatch("her"));
+    }
+
+    public void testPrefixSearch() throws IOException
+    {
+        TreeMap<String, String> map = new TreeMap<>();
+        for (String key : loadDictionary("cn/dictionary.txt"))
+        {
+            map.put(key, key);
+        }
+        AhoCorasickDoubleArrayTrie<String> acdat = new AhoCorasickDoubleArrayTrie<>();
+        acdat.build(map);
+        String text = loadText("cn/text.txt");
+        for (int offset = 0; offset < text.length(); offset += 13)
+        {
+            int limit = Math.min(text.length(), offset + 8);
+            List<String> expected = new ArrayList<>();
+            for (int end = offset + 1; end <= limit; ++end)
+            {
+                if (map.containsKey(text.substring(offset, end))) expected.add("[" + offset + ":" + end + "]=" + text.substring(offset, end));
+            }
+            assertEquals(expected.toString(), acdat.commonPrefixSearch(text, offset, limit).toString());
+        }
+
+        String prefix = map.firstKey().substring(0, 1);
+        List<String> expected = new ArrayList<>(map.subMap(prefix, prefix + Character.MAX_VALUE).keySet());
+        List<String> keys = new ArrayList<>();
+        for (Iterator<Map.Entry<String, String>> iterator = acdat.predictiveSearch(prefix); iterator.hasNext(); )
+        {
+            Map.Entry<String, String> entry = iterator.next();
+            assertEquals(entry.getKey(), entry.getValue());
+            keys.add(entry.getKey());
+        }
+        assertEquals(expected, keys);
+        assertFalse(acdat.predictiveSearch("\uffff").hasNext());
+
+        map.clear();
+        for (String key : new String[]{"he", "her", "hers", "his", "she"})
+        {
+            map.put(key, key);
+        }
+        acdat.build(map, new AhoCorasickDoubleArrayTrie.BuildOptions().fold(AhoCorasickDoubleArrayTrie.Folding.ASCII_CASE));
+        assertEquals("[[1:3]=he, [1:4]=her, [1:5]=hers]", acdat.commonPrefixSearch("SHERS", 1, 5).toString());
+        assertEquals("[[1:3]=he, [1:4]=her]", acdat.commonPrefixSearch("SHERS", 1, 4).toString());
+        Iterator<Map.Entry<String, String>> iterator = acdat.predictiveSearch("HE");
+        assertEquals("he", iterator.next().getKey());
+        assertEquals("her", iterator.next().getKey());
+        assertEquals("hers", iterator.next().getKey());
+        assertFalse(iterator.hasNext());
+    }
+
+    public void testSegmenter() throws IOException
+    {
+        TreeMap<String, String> map = new TreeMap<>();
+        for (String key : new String[]{"\u7814\u7a76", "\u7814\u7a76\u751f", "\u751f\u547d", "\u8d77\u6e90"})
+        {
+            map.put(key, key);
+        }
+        AhoCorasickDoubleArrayTrie<String> acdat = new AhoCorasickDoubleArrayTrie<>();
+        acdat.build(map);
+        // research / life / origin, the greedy forward matching takes "graduate student" first
+        String text = "\u7814\u7a76\u751f\u547d\u7684\u8d77\u6e90";
+        Segmenter<String> segmenter = new Segmenter<>(acdat);
+        assertEquals("[\u7814\u7a76\u751f, \u547d, \u7684, \u8d77\u6e90]", tokens(text, segmenter, 0));
+        assertEquals("[\u7814\u7a76, \u751f\u547d, \u7684, \u8d77\u6e90]", tokens(text, segmenter, 1));
+        // as many tokens, but a word rather than a single character
+        assertEquals("[\u7814\u7a76, \u751f\u547d, \u7684, \u8d77\u6e90]", tokens(text, segmenter, 2));
+        Segmenter<String> weighted = new Segmenter<>(acdat, new Segmenter.IWeigher<String>()
+        {
+            @Override
+            public double weight(String value)
+            {
+                return value.length() == 2 ? 2 : 1;
+            }
+        }, -10);
+        assertEquals("[\u7814\u7a76, \u751f\u547d, \u7684, \u8d77\u6e90]", tokens(text, weighted, 3));
+        try
+        {
+            segmenter.maximumWeight(text, new HitBuffer());
+            fail("segmented by weight without weights");
+        }
+        catch (IllegalStateException expected)
+        {
+        }
+
+        // the fewest tokens, as found by a dynamic programming over the dictionary
+        map.clear();
+        for (String key : loadDictionary("cn/dictionary.txt"))
+        {
+            map.put(key, key);
+        }
+        acdat.build(map);
+        text = loadText("cn/text.txt").substring(0, 50000);
+        HitBuffer tokens = new HitBuffer();
+        new Segmenter<>(acdat).minimumWords(text, tokens);
+        int[] fewest = new int[text.length() + 1];
+        for (int end = 1; end <= text.length(); ++end)
+        {
+            fewest[end] = fewest[end - 1] + 1;
+            for (int begin = Math.max(0, end - 16); begin < end; ++begin)
+            {
+                if (map.containsKey(text.substring(begin, end))) fewest[end] = Math.min(fewest[end], fewest[begin] + 1);
+            }
+        }
+        assertEquals(fewest[text.length()], tokens.size());
+        for (int mode = 0; mode < 3; ++mode)
+        {
+            tokens.clear();
+            if (mode == 0) new Segmenter<>(acdat).forwardMaximumMatching(text, tokens);
+            if (mode == 1) new Segmenter<>(acdat).backwardMaximumMatching(text, tokens);
+            if (mode == 2) new Segmenter<>(acdat).minimumWords(text, tokens);
+            int end = 0;
+            for (int i = 0; i < tokens.size(); ++i)
+            {
+                assertEquals(end, tokens.begin(i));
+                end = tokens.end(i);
+                String token = text.substring(tokens.begin(i), end);
+                if (tokens.index(i) < 0) assertEquals(1, token.length());
+                else assertEquals(token, acdat.get(tokens.index(i)));
+            }
+            assertEquals(text.length(), end);
+        }
+    }
+
+    /**
+     * @param mode 0 forward, 1 backward maximum matching, 2 fewest words, 3 highest weight
+     */
+    private static String tokens(String text, Segmenter<String> segmenter, int mode)
+    {
+        HitBuffer tokens = new HitBuffer();
+        if (mode == 0) segmenter.forwardMaximumMatching(text, tokens);
+        if (mode == 1) segmenter.backwardMaximumMatching(text, tokens);
+        if (mode == 2) segmenter.minimumWords(text, tokens);
+        if (mode == 3) segmenter.maximumWeight(text, tokens);
+        List<String> words = new ArrayList<>();
+        for (int i = 0; i < tokens.size(); ++i)
+        {
+            words.add(text.substring(tokens.begin(i), tokens.end(i)));
+        }
+        return words.toString();
+    }
+
+    /**
+     * The leftmost hits chosen greedily from all the hits, the longest ones or those of the highest priority
+     */
+    private static List<Hit<String>> leftmost(List<Hit<String>> hits, final Map<String, Integer> priority)
+    {
+        List<Hit<String>> sorted = new ArrayList<>(hits);
+        Collections.sort(sorted, new Comparator<Hit<String>>()
+        {
+            @Override
+            public int compare(Hit<String> o1, Hit<String> o2)
+            {
+                if (o1.begin != o2.begin) return o1.begin < o2.begin ? -1 : 1;
+                if (priority != null) return priority.get(o1.value) - priority.get(o2.value);
+                return o2.end - o1.end;
+            }
+        });
+        List<Hit<String>> chosen = new ArrayList<>();
+        int lastEnd = 0;
+        for (Hit<String> hit : sorted)
+        {
+            if (hit.begin < lastEnd) continue;
+            chosen.add(hit);
+            lastEnd = hit.end;
+        }
+        return chosen;
+    }
+
+    public void testRebuild() throws IOException
+    {
+        TreeMap<String, String> large = new TreeMap<>();
+        Random random = new Random(7);
+        while (large.size() < 2000)
+        {
+            char[] key = new char[5];
+            for (int i = 0; i < key.length; ++i)
+            {
+                key[i] = (char) ('a' + random.nextInt(26));
+            }
+            large.put(new String(key), new String(key));
+        }
+        TreeMap<String, String> small = new TreeMap<>();
+        for (String key : new String[]{"a", "b"})
+        {
+            small.put(key, key);
+        }
+        AhoCorasickDoubleArrayTrie<String> fresh = new AhoCorasickDoubleArrayTrie<>();
+        fresh.build(small);
+
+        AhoCorasickDoubleArrayTrie<String> acdat = new AhoCorasickDoubleArrayTrie<>();
+        acdat.build(large);
+        acdat.build(new String[]{"a", "b"}, new String[]{"a", "b"});
+        assertEquals("[[0:1]=a, [1:2]=b]", acdat.parseText("ab").toString());
+
+        // nothing of the larger automaton is kept
+        acdat.build(large);
+        acdat.build(small);
+        assertEquals("[[0:1]=a, [1:2]=b]", acdat.parseText("ab").toString());
+        assertEquals(toBytes(fresh).length, toBytes(acdat).length);
+    }
+
+    public void testRebuildLeftmost()
+    {
+        TreeMap<String, String> first = new TreeMap<>();
+        for (String key : new String[]{"he", "hers", "his", "she"})
+        {
+            first.put(key, key);
+        }
+        TreeMap<String, String> second = new TreeMap<>();
+        for (String key : new String[]{"a", "ab", "abcd", "bcdef", "ef"})
+        {
+            second.put(key, key);
+        }
+        String text = "ushers abcdefxa";
+        AhoCorasickDoubleArrayTrie<String> fresh = new AhoCorasickDoubleArrayTrie<>();
+        fresh.build(second);
+        String expected = fresh.parseText(text, AhoCorasickDoubleArrayTrie.MatchKind.LEFTMOST_LONGEST).toString();
+        assertEquals("[[7:11]=abcd, [11:13]=ef, [14:15]=a]", expected);
+
+        // the depths cached by a leftmost scan belong to the automaton they were computed on
+        AhoCorasickDoubleArrayTrie<String> acdat = new AhoCorasickDoubleArrayTrie<>();
+        acdat.build(first);
+        acdat.parseText(text, AhoCorasickDoubleArrayTrie.MatchKind.LEFTMOST_LONGEST);
+        acdat.build(second);
+        assertEquals(expected, acdat.parseText(text, AhoCorasickDoubleArrayTrie.MatchKind.LEFTMOST_LONGEST).toString());
+        acdat.build(first);
+        acdat.parseText(text, AhoCorasickDoubleArrayTrie.MatchKind.LEFTMOST_LONGEST);
+        acdat.build(second.keySet().toArray(new String[0]), second.values().toArray(new String[0]));
+        assertEquals(expected, acdat.parseText(text, AhoCorasickDoubleArrayTrie.MatchKind.LEFTMOST_LONGEST).toString());
+    }
+
+    public void testTransitionPastTheArrays() throws IOException
+    {
+        // the arrays end at the last state, characters beyond them must fall back to the root
+        TreeMap<String, String> map = new TreeMap<>();
+        for (String key : new String[]{"he", "hers", "his", "she"})
+        {
+            map.put(key, key);
+        }
+        AhoCorasickDoubleArrayTrie<String> acdat = new AhoCorasickDoubleArrayTrie<>();
+        acdat.build(map);
+        String text = "\uffffushers\u4e2d\uffffhis";
+        assertEquals("[[2:5]=she, [3:5]=he, [3:7]=hers, [9:12]=his]", acdat.parseText(text).toString());
+
+        File file = File.createTempFile("acdat", ".bin");
+        file.deleteOnExit();
+        acdat.save(file);
+        MappedAhoCorasickDoubleArrayTrie<String> mapped = MappedAhoCorasickDoubleArrayTrie.load(file, map.values().toArray(new String[0]));
+        assertEquals(acdat.parseText(text).toString(), mapped.parseText(text).toString());
+
+        AhoCorasickDoubleArrayTrie<String> empty = new AhoCorasickDoubleArrayTrie<>();
+        empty.build(new TreeMap<String, String>());
+        assertTrue(empty.parseText(text).isEmpty());
+    }
+
+    private static byte[] toBytes(AhoCorasickDoubleArrayTrie<?> acdat) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        acdat.save(out);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static List<String> sortHits(List<Hit<String>> hits)
+    {
+        List<String> sorted = new ArrayList<>();
+        for (Hit<String> hit : hits)
+        {
+            sorted.add(hit.toString());
+        }
+        Collections.sort(sorted);
+        return sorted;
+    }
+
     public void testBuildEmptyTrie()    // test for building empty tree
     {
          AhoCorasickDoubleArrayTrie<String> acdat = new AhoCorasickDoubleArrayTrie<>();			// object for main class